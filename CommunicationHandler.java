@@ -1,9 +1,17 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
 
 /**
  * Communication Handler class that does the following things:
- *  *
+ *       - Sends a request to a peer node and waits for its response
+ *       - Frames messages on the wire: a 4 byte big-endian length followed by
+ *         the message encoded by WireCodec. A zero length frame stands for "no response".
+ *
  * @author Anusha Naik
  * @author Srivatsa Udupa
  * @author Prarthana Raghavan
@@ -11,69 +19,218 @@ import java.net.*;
 */
 
 public class CommunicationHandler {
+	/* Time allowed for establishing a connection to a peer */
+	public static final int CONNECT_TIMEOUT = Integer.getInteger("chord.connectTimeoutMillis", 2000);
+	/* Time allowed for the response to a request to arrive */
+	public static final int READ_TIMEOUT = Integer.getInteger("chord.readTimeoutMillis", 5000);
+	/* Frames larger than this are treated as a protocol error */
+	public static final int MAX_FRAME = Integer.getInteger("chord.maxFrameBytes", 16 * 1024 * 1024);
+	/* chord.codec=text keeps this node from offering the binary format, e.g. during a rolling upgrade */
+	private static final boolean OFFER_BINARY = !"text".equals(System.getProperty("chord.codec"));
+	/* Requests the peer may have applied before the connection failed, which are never sent twice */
+	private static final Set<String> NOT_REPLAYED = Set.of("RQFILE", "RQFTX", "RQXBEG", "RQXPUT", "RQXEND", "RQXREP", "RQRBEG", "RQRPUT");
+
 	/* 1. Request Send */
 	public static String sendRequest(InetSocketAddress server, String request) {
 		/* Validate Request */
 		if (server == null || request == null)
 			return null;
-		/* Create send socket and write to the output stream */
-		Socket senderSocket = null;
+		Message response = send(server, WireCodec.parseText(request));
+		if (response == null)
+			return null;
+		return response.toString();
+	}
+
+	/**
+	 * Send a request to a node and wait for its response.
+	 * The outcome is recorded in the liveness table: any response marks the node
+	 * as seen, a failed connection or a timeout marks it as failed.
+	 * Args:
+	 *       server: the node to ask
+	 *       request: the request message
+	 *
+	 * Returns:
+	 *       the response, or null if the node did not answer
+	 */
+	public static Message send(InetSocketAddress server, Message request) {
+		return send(server, request, null, 0);
+	}
+
+	/**
+	 * Request a byte range of a file (RQGETF) and write the content that follows
+	 * the response frame straight into a file, with transferFrom
+	 * Args:
+	 *       server: the node holding the file
+	 *       request: the RQGETF request
+	 *       sink: file the content is written to
+	 *       position: position in the file of the first byte
+	 *
+	 * Returns:
+	 *       the response (RPGETF giving the bytes written and their checksum), or null if the node did not answer
+	 */
+	public static Message fetch(InetSocketAddress server, Message request, FileChannel sink, long position) {
+		return send(server, request, sink, position);
+	}
+
+	private static Message send(InetSocketAddress server, Message request, FileChannel sink, long position) {
+		/* Validate Request */
+		if (server == null || request == null)
+			return null;
+		/* Borrow a pooled connection to the server */
+		ConnectionPool.Connection conn = null;
 		try 
 		{
-			senderSocket = new Socket(server.getAddress(),server.getPort());
-			PrintStream output = new PrintStream(senderSocket.getOutputStream());
-			output.println(request);
+			conn = ConnectionPool.acquire(server);
 		} 
 		catch (IOException e) 
 		{
+			Liveness.failed(server);
 			return null;
 		}
+		Message response = null;
 		try 
 		{
-			Thread.sleep(60);
+			response = exchange(conn, request, sink, position);
 		} 
-		catch (InterruptedException e) 
+		catch (SocketTimeoutException e) 
 		{
-			e.printStackTrace();
+			/* The request may still be processed by the peer: never replay it */
+			ConnectionPool.discard(conn);
+			Liveness.failed(server);
+			return null;
 		}
-		InputStream inMessageStream = null;
-		try 
+		catch (RuntimeException e) 
 		{
-			inMessageStream = senderSocket.getInputStream();
-		} 
-		catch (IOException e) 
-		{
-			System.out.println("Input Stream Error: \nServer: "+server.toString()+"\nRequest: "+request);
+			/* The response could not be decoded */
+			ConnectionPool.discard(conn);
+			return null;
 		}
-		
-		/* Read response packets and parse */
-		String response = parseIOStream(inMessageStream);
-		try 
+		catch (IOException e) 
 		{
-			senderSocket.close();
-		} 
-		catch (IOException e) {
-			throw new RuntimeException(
-					"Cannot close socket", e);
+			/* A kept-alive connection may have been closed by the peer meanwhile: retry once on a new one,
+			   unless the request went out and the peer may have applied it already */
+			if (!conn.reused || (conn.sent && NOT_REPLAYED.contains(request.code))) 
+			{
+				ConnectionPool.discard(conn);
+				Liveness.failed(server);
+				return null;
+			}
+			try 
+			{
+				conn = ConnectionPool.reopen(conn);
+			} 
+			catch (IOException e1) 
+			{
+				Liveness.failed(server);
+				return null;
+			}
+			try 
+			{
+				response = exchange(conn, request, sink, position);
+			} 
+			catch (IOException | RuntimeException e1) 
+			{
+				ConnectionPool.discard(conn);
+				Liveness.failed(server);
+				return null;
+			}
 		}
+		ConnectionPool.release(conn);
+		Liveness.seen(server);
 		return response;
 	}
 
-	/* Read input stream and parse it into a string */
-	public static String parseIOStream(InputStream inMessageStream) {
-		if (inMessageStream == null) {
-			return null;
+	/* Write one request frame and read the matching response frame (null for an empty one) */
+	private static Message exchange(ConnectionPool.Connection conn, Message request, FileChannel sink, long position) throws IOException {
+		conn.sent = false;
+		if (!conn.negotiated)
+			negotiate(conn);
+		conn.out = writeFrame(conn.output, request, conn.binary, conn.out);
+		conn.sent = true;
+		conn.in = readFrame(conn.input, conn.in);
+		if (conn.in == null)
+			throw new EOFException("Connection closed by "+conn.server);
+		Message response = WireCodec.decode(conn.in);
+		if (response != null && response.is("RPGETF") && response.count > 0)
+			readContent(conn.input, response.count, sink, position);
+		return response;
+	}
+
+	/* Read the file content following an RPGETF frame into the sink, or past it without one */
+	private static void readContent(DataInputStream input, long count, FileChannel sink, long position) throws IOException {
+		if (sink == null) {
+			input.skipNBytes(count);
+			return;
 		}
-		BufferedReader msgReader = new BufferedReader(new InputStreamReader(inMessageStream));
-		String readline = null;
+		// through the connection's stream, which may hold the first bytes already
+		ReadableByteChannel source = Channels.newChannel(input);
+		long done = 0;
+		while (done < count) {
+			long n = sink.transferFrom(source, position + done, count - done);
+			if (n <= 0)
+				throw new EOFException("Connection closed while reading file content");
+			done += n;
+		}
+	}
+
+	/* Offer the binary format on a new connection; peers that do not know RQCODEC give no response */
+	private static void negotiate(ConnectionPool.Connection conn) throws IOException {
+		if (OFFER_BINARY) 
+		{
+			conn.out = writeFrame(conn.output, Message.of("RQCODEC"), false, conn.out);
+			conn.in = readFrame(conn.input, conn.in);
+			if (conn.in == null)
+				throw new EOFException("Connection closed by "+conn.server);
+			Message response = WireCodec.decode(conn.in);
+			conn.binary = response != null && response.is("RPCODEC");
+		}
+		conn.negotiated = true;
+	}
+
+	/**
+	 * Encode a message as a frame and flush it
+	 * Args:
+	 *       output: stream of the connection
+	 *       message: the message, null is written as an empty frame
+	 *       binary: whether the binary format may be used
+	 *       buffer: encoding buffer to reuse, may be null
+	 *
+	 * Returns:
+	 *       the encoding buffer, to be passed to the next call
+	 */
+	public static ByteBuffer writeFrame(DataOutputStream output, Message message, boolean binary, ByteBuffer buffer) throws IOException {
+		buffer = WireCodec.encodeFrame(message, binary, buffer);
+		output.write(buffer.array(), 0, buffer.limit());
+		output.flush();
+		return buffer;
+	}
+
+	/**
+	 * Read one length-prefixed frame
+	 * Args:
+	 *       input: stream of the connection
+	 *       buffer: buffer to reuse, may be null
+	 *
+	 * Returns:
+	 *       a buffer holding the frame payload (possibly empty), or null if the stream ended between frames
+	 */
+	public static ByteBuffer readFrame(DataInputStream input, ByteBuffer buffer) throws IOException {
+		int length;
 		try 
 		{
-			readline = msgReader.readLine();
+			length = input.readInt();
 		} 
-		catch (IOException e) 
+		catch (EOFException e) 
 		{
 			return null;
 		}
-		return readline;
+		if (length < 0 || length > MAX_FRAME)
+			throw new IOException("Invalid frame length "+length);
+		if (buffer == null || buffer.capacity() < length)
+			buffer = ByteBuffer.allocate(Math.max(length, 256));
+		input.readFully(buffer.array(), 0, length);
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
 	}
 }
@@ -0,0 +1,174 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Pool of persistent connections to peer nodes.
+ * Sockets are kept open between requests so that the periodic traffic of
+ * stabilization, heart beat and finger fixing does not pay a TCP handshake
+ * (and an ephemeral port) for every message.
+ *
+ * Every connection carries one request/response exchange at a time; concurrent
+ * requests to the same peer are spread over up to MAX_PER_PEER connections.
+ * Connections that stay idle for longer than IDLE_TIMEOUT are closed.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class ConnectionPool {
+
+	/* Maximum number of simultaneously open connections to one peer */
+	private static final int MAX_PER_PEER = Integer.getInteger("chord.pool.maxPerPeer", 8);
+	/* Idle connections older than this are evicted (must stay below Receiver.IDLE_TIMEOUT) */
+	private static final long IDLE_TIMEOUT = Long.getLong("chord.pool.idleMillis", 30000);
+	/* Maximum time a request waits for a free connection slot to a busy peer */
+	private static final long ACQUIRE_TIMEOUT = Long.getLong("chord.pool.acquireMillis", 2000);
+
+	private static final ConcurrentHashMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<InetSocketAddress, Peer>();
+
+	static {
+		ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread t = new Thread(runnable, "connection-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		evictor.scheduleWithFixedDelay(ConnectionPool::evictIdle, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/* Connections and slot accounting for a single peer */
+	private static class Peer {
+		final Semaphore slots = new Semaphore(MAX_PER_PEER);
+		final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+	}
+
+	/**
+	 * One open socket to a peer together with its streams and codec state
+	 */
+	public static class Connection {
+		final InetSocketAddress server;
+		final Socket socket;
+		final DataInputStream input;
+		final DataOutputStream output;
+		boolean reused;
+		long lastUsed;
+		/* Whether the request of the current exchange was written out in full */
+		boolean sent;
+		/* Whether the codec was agreed on, and whether it is binary */
+		boolean negotiated;
+		boolean binary;
+		/* Frame buffers reused across the requests of the connection */
+		ByteBuffer in;
+		ByteBuffer out;
+
+		private Connection(InetSocketAddress server, Socket socket) throws IOException {
+			this.server = server;
+			this.socket = socket;
+			this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.reused = false;
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		}
+	}
+
+	/**
+	 * Borrow a connection to the server, reusing an idle one when possible
+	 * Args:
+	 *       server: address of the peer node
+	 *
+	 * Returns:
+	 *       an open connection, which must be handed back through release or discard
+	 */
+	public static Connection acquire(InetSocketAddress server) throws IOException {
+		Peer peer = peers.computeIfAbsent(server, k -> new Peer());
+		try {
+			if (!peer.slots.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS))
+				throw new IOException("Connection limit reached for " + server);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + server);
+		}
+		// prefer the most recently used connection, dropping stale ones on the way
+		Connection conn;
+		long now = System.currentTimeMillis();
+		while ((conn = peer.idle.pollFirst()) != null) {
+			if (now - conn.lastUsed < IDLE_TIMEOUT && !conn.socket.isClosed()) {
+				conn.reused = true;
+				return conn;
+			}
+			conn.close();
+		}
+		try {
+			return new Connection(server, connect(server));
+		} catch (IOException e) {
+			peer.slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a fresh connection in place of a reused one that turned out to be dead.
+	 * The slot held by the dead connection is carried over.
+	 */
+	public static Connection reopen(Connection dead) throws IOException {
+		dead.close();
+		try {
+			return new Connection(dead.server, connect(dead.server));
+		} catch (IOException e) {
+			peers.get(dead.server).slots.release();
+			throw e;
+		}
+	}
+
+	/* Open a socket bounded by the connect and read timeouts of CommunicationHandler */
+	private static Socket connect(InetSocketAddress server) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(server, CommunicationHandler.CONNECT_TIMEOUT);
+			socket.setSoTimeout(CommunicationHandler.READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/* Return a healthy connection to the pool */
+	public static void release(Connection conn) {
+		Peer peer = peers.get(conn.server);
+		conn.lastUsed = System.currentTimeMillis();
+		peer.idle.offerFirst(conn);
+		peer.slots.release();
+	}
+
+	/* Close a connection that failed and give back its slot */
+	public static void discard(Connection conn) {
+		conn.close();
+		peers.get(conn.server).slots.release();
+	}
+
+	/* Close connections which were not used for longer than the idle timeout */
+	private static void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<InetSocketAddress, Peer> entry : peers.entrySet()) {
+			Iterator<Connection> it = entry.getValue().idle.descendingIterator();
+			while (it.hasNext()) {
+				Connection conn = it.next();
+				if (now - conn.lastUsed >= IDLE_TIMEOUT && entry.getValue().idle.removeFirstOccurrence(conn))
+					conn.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Count-min sketch of how often identifiers were seen, in a fixed number of
+ * counters however many identifiers there are. Each identifier is counted in
+ * one counter per row, and its estimate is the smallest of them: it never
+ * undercounts, and overcounts by other identifiers sharing its counters only.
+ * Counts are halved by decay(), so the sketch follows recent frequencies.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public final class CountMinSketch {
+
+	private final int depth;
+	/* Counters per row, a power of two */
+	private final int width;
+	private final AtomicIntegerArray counters;
+
+	public CountMinSketch(int depth, int width) {
+		this.depth = Math.max(1, depth);
+		this.width = Integer.highestOneBit(Math.max(2, width));
+		this.counters = new AtomicIntegerArray(this.depth * this.width);
+	}
+
+	/**
+	 * Count an identifier once
+	 * Args:
+	 *       id: the identifier
+	 *
+	 * Returns:
+	 *       its estimated count, this one included
+	 */
+	public int add(long id) {
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			int count = counters.incrementAndGet(slot(row, id));
+			estimate = Math.min(estimate, count);
+		}
+		return estimate;
+	}
+
+	/* The estimated count of an identifier */
+	public int estimate(long id) {
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++)
+			estimate = Math.min(estimate, counters.get(slot(row, id)));
+		return estimate;
+	}
+
+	/* Halve every count; counts added meanwhile may be halved or not */
+	public void decay() {
+		for (int i = 0; i < counters.length(); i++) {
+			int count;
+			do {
+				count = counters.get(i);
+			} while (count != 0 && !counters.compareAndSet(i, count, count >>> 1));
+		}
+	}
+
+	/* The counter of an identifier in a row, from a hash seeded per row */
+	private int slot(int row, long id) {
+		long h = (id + 0x9E3779B97F4A7C15L * (row + 1));
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h ^= h >>> 31;
+		return row * width + (int) (h & (width - 1));
+	}
+}
@@ -0,0 +1,85 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Key value store keeping every value as a plain file, named after the file,
+ * in the node's folder. Names starting with a dot are left to the node
+ * (e.g. transfers in progress).
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class DirectoryStore implements KeyValueStore {
+
+	private final File folder;
+
+	public DirectoryStore(File folder) throws IOException {
+		if (!folder.isDirectory())
+			throw new IOException("Not a folder: "+folder);
+		this.folder = folder;
+	}
+
+	@Override
+	public Iterable<Map.Entry<Long, String>> entries() throws IOException {
+		File[] files = folder.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list "+folder);
+		ArrayList<Map.Entry<Long, String>> entries = new ArrayList<Map.Entry<Long, String>>();
+		for (File file : files)
+			if (file.isFile() && !file.getName().startsWith("."))
+				entries.add(new AbstractMap.SimpleImmutableEntry<Long, String>(Handler.hashString(file.getName()), file.getName()));
+		return entries;
+	}
+
+	@Override
+	public boolean contains(long key, String name) {
+		return new File(folder, name).isFile();
+	}
+
+	/* Adding, removing or renaming a file updates the folder's modification time */
+	@Override
+	public long stamp() {
+		return folder.lastModified();
+	}
+
+	@Override
+	public Region read(long key, String name) throws IOException {
+		try {
+			FileChannel channel = FileChannel.open(new File(folder, name).toPath(), StandardOpenOption.READ);
+			return new Region(channel, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void put(long key, String name, byte[] content) throws IOException {
+		Files.write(new File(folder, name).toPath(), content);
+	}
+
+	@Override
+	public void put(long key, String name, Path staged) throws IOException {
+		Files.move(staged, new File(folder, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public void remove(long key, String name) throws IOException {
+		Files.deleteIfExists(new File(folder, name).toPath());
+	}
+
+	@Override
+	public void close() {
+		// every write went straight to its file
+	}
+}
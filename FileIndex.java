@@ -0,0 +1,125 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Index of the files a node holds, sorted by file ID.
+ * The keys of a ring interval (from, to] are extracted with one or two
+ * sub-map views, in O(log n + k) for k keys, instead of a scan of every file.
+ * Backed by a skip list so the Receiver threads read and update it without
+ * locking; a range read while files are added or removed sees each key at
+ * most once.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class FileIndex {
+
+	private final ConcurrentSkipListMap<Long, String> files = new ConcurrentSkipListMap<Long, String>();
+	/* IDs of the files being streamed to another node */
+	private final Set<Long> moving = ConcurrentHashMap.newKeySet();
+	/* Counts the changes, so a snapshot is only written and copies only synced when there is something new */
+	private final AtomicLong changes = new AtomicLong();
+	/* CRC32 of the files whose content is known, dropped whenever a file is put again or removed */
+	private final ConcurrentHashMap<Long, Long> checksums = new ConcurrentHashMap<Long, Long>();
+
+	/* Index a file; a file put again under its name counts as a change too, as its content may be new */
+	public void put(long id, String filename) {
+		files.put(id, filename);
+		changes.incrementAndGet();
+		checksums.remove(id);
+	}
+
+	/* Index a file whose CRC32 is known, e.g. checked when it was received */
+	public void put(long id, String filename, long checksum) {
+		files.put(id, filename);
+		changes.incrementAndGet();
+		checksums.put(id, checksum);
+	}
+
+	/* The CRC32 of a file, or -1 if it is not known */
+	public long checksum(long id) {
+		Long checksum = checksums.get(id);
+		return checksum == null ? -1 : checksum;
+	}
+
+	/**
+	 * Remember the CRC32 of a file computed from its content
+	 * Args:
+	 *       id: the file's ID
+	 *       checksum: the CRC32
+	 *       since: changes() read before the content was, so a file put again meanwhile is not given the old value
+	 */
+	public void cacheChecksum(long id, long checksum, long since) {
+		if (checksums.putIfAbsent(id, checksum) == null && changes.get() != since)
+			checksums.remove(id, checksum);
+	}
+
+	public String get(long id) {
+		return files.get(id);
+	}
+
+	public boolean contains(long id) {
+		return files.containsKey(id);
+	}
+
+	/* Remove the file, only if the ID still maps to this name */
+	public boolean remove(long id, String filename) {
+		if (!files.remove(id, filename))
+			return false;
+		changes.incrementAndGet();
+		checksums.remove(id);
+		return true;
+	}
+
+	/* Reserve the file for a transfer; false if another transfer is moving it already */
+	public boolean claim(long id) {
+		return moving.add(id);
+	}
+
+	public void release(long id) {
+		moving.remove(id);
+	}
+
+	public void clear() {
+		files.clear();
+		changes.incrementAndGet();
+		checksums.clear();
+	}
+
+	public long changes() {
+		return changes.get();
+	}
+
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * Files with IDs in the ring interval (from, to], in ring order from from
+	 * Args:
+	 *       from: exclusive start of the interval
+	 *       to: inclusive end of the interval; to == from stands for the whole ring
+	 *
+	 * Returns:
+	 *       the ID and name of each file in the interval, read lazily from the index
+	 */
+	public Iterable<Map.Entry<Long, String>> range(long from, long to) {
+		if (from < to)
+			return files.subMap(from, false, to, true).entrySet();
+		// the interval wraps past the top of the ring
+		Set<Map.Entry<Long, String>> tail = files.tailMap(from, false).entrySet();
+		Set<Map.Entry<Long, String>> head = files.headMap(to, true).entrySet();
+		return () -> Stream.concat(tail.stream(), head.stream()).iterator();
+	}
+
+	/* Every file in ID order, read lazily from the index */
+	public Iterable<Map.Entry<Long, String>> entries() {
+		return files.entrySet();
+	}
+}
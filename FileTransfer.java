@@ -0,0 +1,462 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Streams files with their contents from one node to another, used when a
+ * joining node takes over its keys and when a leaving node hands its keys to
+ * its successor. Each file goes over in three steps:
+ *       RQXBEG - announces the file ID, length, name and CRC32; the receiver
+ *                answers with the bytes it already holds of the file (RPXBEG)
+ *       RQXPUT - one chunk at an offset; the receiver appends it and answers
+ *                with the bytes it holds now (RPXACK)
+ *       RQXEND - the receiver checks the length and CRC32, moves the file into
+ *                its store and indexes it (RPXEND)
+ * One chunk of CHUNK_BYTES is in flight per transfer at a time, so both sides
+ * hold at most one chunk in memory. The receiver writes to a part file named
+ * after the file ID and CRC32, which is what lets a transfer resume after a
+ * failure: the sender starts over with RQXBEG and continues from the offset
+ * returned. Senders of another version of the file write another part file, and
+ * a part whose CRC32 does not match at RQXEND is dropped and sent again.
+ * The sender deletes a file and its key only once RPXEND acknowledged it.
+ * Copies for replication go the same way with RQRBEG, RQRPUT and RQXREP, which
+ * stage them in the receiver's replica folder, apart from files being handed
+ * over, and file them with its replicas; the sender keeps its file. The sender first
+ * sends the CRC32 of each of its files (RQRSYN) and the replica answers with
+ * those it lacks or holds other content for, so repairs only send those.
+ *
+ * A file is downloaded from the node holding it (RQGETF) in ranges of up to
+ * RANGE_BYTES. The RPGETF frame gives the length and CRC32 of the range and the
+ * length of the whole file, and is followed on the connection by the content
+ * itself, which the node sends from disk to socket with transferTo and the
+ * downloader writes to disk with transferFrom; a range whose checksum does not
+ * match is fetched again. The download goes to a temporary file, moved into
+ * place only once every range arrived.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class FileTransfer {
+
+	/* Bytes of file content per RQXPUT, well below the frame limit */
+	public static final int CHUNK_BYTES = Math.max(1024, Math.min(CommunicationHandler.MAX_FRAME / 2,
+			Integer.getInteger("chord.transfer.chunkBytes", 64 * 1024)));
+	/* Times a file transfer is resumed after a request failed */
+	private static final int RETRIES = Integer.getInteger("chord.transfer.retries", 3);
+	/* Bytes of file content per RQGETF range */
+	public static final long RANGE_BYTES = Math.max(1, Long.getLong("chord.get.rangeBytes", 8L * 1024 * 1024));
+	/* Files being received are kept under this prefix; the node's file index skips them */
+	static final String PART_PREFIX = ".part-";
+	/* Codes of the begin, put and end steps of a transfer, for files moved and for copies */
+	private static final String[] MOVE = { "RQXBEG", "RQXPUT", "RQXEND" };
+	private static final String[] COPY = { "RQRBEG", "RQRPUT", "RQXREP" };
+	/* Bytes mapped at a time for a checksum */
+	private static final long CHECKSUM_SLICE = 64L * 1024 * 1024;
+
+	/**
+	 * Stream files to a node, removing each one here once the node acknowledged it
+	 * Args:
+	 *       target: the node taking the files over
+	 *       store: the store holding the files
+	 *       index: the index of the files, updated as they leave
+	 *       files: the ID and name of each file to send
+	 *
+	 * Returns:
+	 *       true if every file was moved, false if some stayed here
+	 */
+	public static boolean send(InetSocketAddress target, KeyValueStore store, FileIndex index, Iterable<Map.Entry<Long, String>> files) {
+		boolean moved = true;
+		for (Map.Entry<Long, String> file : files) {
+			// overlapping transfers, e.g. to two nodes joining at once, send each file only once
+			if (!index.claim(file.getKey())) {
+				moved = false;
+				continue;
+			}
+			try {
+				Boolean sent = sendFile(target, store, file.getKey(), file.getValue(), MOVE);
+				if (sent == null)
+					continue;
+				if (sent) {
+					store.remove(file.getKey(), file.getValue());
+					index.remove(file.getKey(), file.getValue());
+				}
+				else {
+					moved = false;
+				}
+			} catch (IOException e) {
+				System.out.println("Cannot remove file "+file.getValue());
+				moved = false;
+			} finally {
+				index.release(file.getKey());
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Copy the files a node lacks, or holds an outdated copy of, to it as replicas
+	 * Args:
+	 *       target: the node holding the replicas
+	 *       store: the store holding the files
+	 *       index: the index of the files
+	 *       held: the CRC32 of the copy of each file the node is known to hold, brought up to date here
+	 *
+	 * Returns:
+	 *       true if the node holds a copy of every file now
+	 */
+	public static boolean replicate(InetSocketAddress target, KeyValueStore store, FileIndex index, Map<Long, Long> held) {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		for (Map.Entry<Long, String> file : index.entries())
+			ids.add(file.getKey());
+		held.keySet().retainAll(new HashSet<Long>(ids));
+		boolean copied = true;
+		for (int from = 0; from < ids.size(); from += Handler.BATCH_SIZE) {
+			List<Long> batch = ids.subList(from, Math.min(ids.size(), from + Handler.BATCH_SIZE));
+			// each ID followed by the CRC32 of the file
+			long[] request = new long[2 * batch.size()];
+			int length = 0;
+			for (long id : batch) {
+				String name = index.get(id);
+				long crc = name == null ? -1 : checksum(store, index, id, name);
+				if (crc < 0)
+					continue;
+				request[length++] = id;
+				request[length++] = crc;
+			}
+			if (length == 0)
+				continue;
+			if (length < request.length)
+				request = Arrays.copyOf(request, length);
+			Message response = CommunicationHandler.send(target, Message.of("RQRSYN", request));
+			if (response == null || !response.is("RPRSYN"))
+				return false;
+			HashSet<Long> missing = new HashSet<Long>();
+			if (response.ids != null)
+				for (long id : response.ids)
+					missing.add(id);
+			for (int i = 0; i < length; i += 2) {
+				long id = request[i];
+				if (!missing.contains(id)) {
+					held.put(id, request[i + 1]);
+					continue;
+				}
+				held.remove(id);
+				String name = index.get(id);
+				// a file that left meanwhile needs no copy
+				if (name == null)
+					continue;
+				Boolean sent = sendFile(target, store, id, name, COPY);
+				if (Boolean.TRUE.equals(sent))
+					held.put(id, request[i + 1]);
+				else if (sent != null)
+					copied = false;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Move files from one store to another on the same node, e.g. replicas becoming the node's own files
+	 * Args:
+	 *       folder: the node's folder, for staging the contents
+	 *       from, fromIndex: the store and index the files leave
+	 *       to, toIndex: the store and index taking them
+	 *       files: the ID and name of each file to move
+	 */
+	public static void move(String folder, KeyValueStore from, FileIndex fromIndex, KeyValueStore to, FileIndex toIndex,
+			Iterable<Map.Entry<Long, String>> files) {
+		for (Map.Entry<Long, String> file : files) {
+			long id = file.getKey();
+			String name = file.getValue();
+			try {
+				try (KeyValueStore.Region value = from.read(id, name)) {
+					if (value != null && !toIndex.contains(id)) {
+						File staged = new File(folder, PART_PREFIX + "move-" + id);
+						try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE,
+								StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+							long copied = 0;
+							while (copied < value.length)
+								copied += value.channel.transferTo(value.position + copied, value.length - copied, channel);
+						}
+						to.put(id, name, staged.toPath());
+						long crc = fromIndex.checksum(id);
+						if (crc >= 0)
+							toIndex.put(id, name, crc);
+						else
+							toIndex.put(id, name);
+					}
+				}
+				from.remove(id, name);
+				fromIndex.remove(id, name);
+			} catch (IOException e) {
+				System.out.println("Cannot move file "+name);
+			}
+		}
+	}
+
+	/* Whether the node acknowledged the file, null if the file is not stored */
+	private static Boolean sendFile(InetSocketAddress target, KeyValueStore store, long id, String name, String[] steps) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		try (KeyValueStore.Region value = store.read(id, name)) {
+			if (value == null)
+				return null;
+			FileChannel channel = value.channel;
+			long length = value.length;
+			long crc = checksum(channel, value.position, length);
+			for (int attempt = 0; attempt <= RETRIES; attempt++) {
+				Message response = CommunicationHandler.send(target, chunk(steps[0], id, length, nameBytes, crc));
+				if (response == null || !response.is("RPXBEG"))
+					continue;
+				long offset = response.offset;
+				while (offset < length) {
+					ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_BYTES, length - offset));
+					while (chunk.hasRemaining() && channel.read(chunk, value.position + offset + chunk.position()) >= 0)
+						;
+					response = CommunicationHandler.send(target, chunk(steps[1], id, offset, chunk.array(), crc));
+					if (response == null || !response.is("RPXACK"))
+						break;
+					offset = response.offset;
+				}
+				if (offset < length)
+					continue;
+				response = CommunicationHandler.send(target, chunk(steps[2], id, length, nameBytes, crc));
+				if (response != null && response.is("RPXEND"))
+					return true;
+			}
+		} catch (IOException e) {
+			System.out.println("Cannot read file "+name);
+		}
+		return false;
+	}
+
+	/**
+	 * CRC32 of a stored file
+	 * Args:
+	 *       store: the store holding the file
+	 *       id, name: the file's ID and name
+	 *
+	 * Returns:
+	 *       the CRC32, or -1 if the store does not hold the file or cannot read it
+	 */
+	public static long checksum(KeyValueStore store, long id, String name) {
+		try (KeyValueStore.Region value = store.read(id, name)) {
+			return value == null ? -1 : checksum(value.channel, value.position, value.length);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/* CRC32 of an indexed file, computed only if the index does not know it yet, and then kept there */
+	public static long checksum(KeyValueStore store, FileIndex index, long id, String name) {
+		long crc = index.checksum(id);
+		if (crc >= 0)
+			return crc;
+		long since = index.changes();
+		crc = checksum(store, id, name);
+		if (crc >= 0)
+			index.cacheChecksum(id, crc, since);
+		return crc;
+	}
+
+	/* A transfer step: the file ID, an offset, bytes (a name or a chunk) and the CRC32 of the whole file */
+	private static Message chunk(String code, long id, long offset, byte[] data, long crc) {
+		Message m = Message.chunk(code, id, offset, data);
+		m.checksum = crc;
+		return m;
+	}
+
+	/* ******************************** Receiving side ************************************** */
+
+	/* RQXBEG, RQRBEG: start or resume receiving a file, answering with the bytes already held */
+	public static Message begin(String folder, Message request) {
+		if (fileName(request) == null)
+			return null;
+		File part = partFile(folder, request);
+		try {
+			// a part longer than the file announced belongs to another version of it
+			if (!part.createNewFile() && part.length() > request.offset)
+				Files.write(part.toPath(), new byte[0]);
+		} catch (IOException e) {
+			return null;
+		}
+		return Message.offset("RPXBEG", part.length());
+	}
+
+	/* RQXPUT, RQRPUT: append a chunk to the part file if it continues it, answering with the bytes held */
+	public static Message put(String folder, Message request) {
+		File part = partFile(folder, request);
+		if (!part.exists())
+			return null;
+		long held = part.length();
+		if (request.offset != held || request.data == null)
+			return Message.offset("RPXACK", held);
+		try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer chunk = ByteBuffer.wrap(request.data);
+			while (chunk.hasRemaining())
+				channel.write(chunk);
+		} catch (IOException e) {
+			return null;
+		}
+		return Message.offset("RPXACK", part.length());
+	}
+
+	/* RQXEND, RQXREP: move the complete file into the store (own files or replicas) and index it */
+	public static Message end(String folder, KeyValueStore store, FileIndex index, Message request) {
+		String name = fileName(request);
+		File part = partFile(folder, request);
+		if (name == null || !part.exists())
+			return null;
+		if (part.length() != request.offset)
+			return Message.offset("RPXACK", part.length());
+		try {
+			// bytes from two senders spliced together: drop them, the sender starts over
+			if (checksum(part) != request.checksum) {
+				Files.delete(part.toPath());
+				return null;
+			}
+			store.put(request.id, name, part.toPath());
+		} catch (IOException e) {
+			return null;
+		}
+		index.put(request.id, name, request.checksum);
+		return Message.of("RPXEND");
+	}
+
+	/* The part file of a transfer, one per file ID and content */
+	private static File partFile(String folder, Message request) {
+		return new File(folder, PART_PREFIX + request.id + "-" + Long.toHexString(request.checksum));
+	}
+
+	private static long checksum(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return checksum(channel, 0, channel.size());
+		}
+	}
+
+	/* The file name carried by the request, or null if it is not a plain name within the folder */
+	private static String fileName(Message request) {
+		if (request.data == null)
+			return null;
+		String name = new String(request.data, StandardCharsets.UTF_8);
+		if (name.isEmpty() || name.startsWith(".") || !new File(name).getName().equals(name))
+			return null;
+		return name;
+	}
+
+	/* ******************************** Downloads ************************************** */
+
+	/* RQGETF: a range of a file held here, its content attached to the response; RPNFL if the file is not held */
+	public static Message get(KeyValueStore store, FileIndex index, Message request) {
+		String name = index.get(request.id);
+		if (name == null)
+			return Message.of("RPNFL");
+		KeyValueStore.Region value = null;
+		try {
+			value = store.read(request.id, name);
+			if (value == null)
+				return Message.of("RPNFL");
+			long offset = Math.min(Math.max(request.offset, 0), value.length);
+			long count = Math.min(Math.min(Math.max(request.count, 0), RANGE_BYTES), value.length - offset);
+			CRC32 crc = new CRC32();
+			if (count > 0)
+				crc.update(value.channel.map(FileChannel.MapMode.READ_ONLY, value.position + offset, count));
+			Message response = Message.range("RPGETF", request.id, offset, count);
+			response.checksum = crc.getValue();
+			response.total = value.length;
+			// the writer of the response sends the content and closes the channel
+			if (count > 0) {
+				response.file = value.channel;
+				response.filePosition = value.position + offset;
+			}
+			else {
+				value.close();
+			}
+			return response;
+		} catch (IOException e) {
+			if (value != null)
+				value.close();
+			return Message.of("RPNFL");
+		}
+	}
+
+	/**
+	 * Download a file from the node holding it
+	 * Args:
+	 *       server: the node holding the file
+	 *       id: the file's ID
+	 *       target: where to store the file, left as it was unless the whole file arrived
+	 *
+	 * Returns:
+	 *       the length of the file, or -1 if the node does not hold it
+	 */
+	public static long download(InetSocketAddress server, long id, File target) throws IOException {
+		File staged = File.createTempFile(PART_PREFIX + "get-", null, target.getAbsoluteFile().getParentFile());
+		try {
+			long length = receive(server, id, staged);
+			if (length >= 0)
+				Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return length;
+		} finally {
+			staged.delete();
+		}
+	}
+
+	private static long receive(InetSocketAddress server, long id, File target) throws IOException {
+		try (FileChannel sink = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long offset = 0;
+			while (true) {
+				Message response = null;
+				for (int attempt = 0; attempt <= RETRIES && response == null; attempt++) {
+					response = CommunicationHandler.fetch(server, Message.range("RQGETF", id, offset, RANGE_BYTES), sink, offset);
+					if (response == null)
+						continue;
+					if (!response.is("RPGETF"))
+						return -1;
+					if (checksum(sink, offset, response.count) != response.checksum)
+						response = null;
+				}
+				if (response == null)
+					throw new IOException("Cannot download the range at offset "+offset+" from "+server);
+				offset += response.count;
+				// the holder caps ranges at its own RANGE_BYTES, so only the file's length ends the download
+				if (response.count == 0 || offset >= response.total)
+					break;
+			}
+			sink.truncate(offset);
+			return offset;
+		}
+	}
+
+	/* CRC32 of a region, mapped a slice at a time so it may exceed what one mapping holds */
+	private static long checksum(FileChannel channel, long offset, long count) throws IOException {
+		CRC32 crc = new CRC32();
+		for (long done = 0; done < count; done += CHECKSUM_SLICE)
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, offset + done, Math.min(CHECKSUM_SLICE, count - done)));
+		return crc.getValue();
+	}
+
+	static void close(FileChannel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+	}
+}
@@ -2,44 +2,40 @@ import java.net.InetSocketAddress;
 import java.util.Random;
 
 /**
- * Maintains a thread for Finger Table checks
- * Access a random entry in finger table periodically and 
- * and fix it.
+ * Finger Table check, run periodically
+ * Each round refreshes the whole table in one pass (bulk, the default),
+ * or accesses a random entry in finger table and fixes it (random).
  * @author Anusha Naik
  * @author Srivatsa Udupa
  * @author Prarthana Raghavan
  */
 
 
-public class FingerTable extends Thread{
+public class FingerTable implements Runnable{
+
+	/* Period while the ring changes, and the most it backs off to while it is stable */
+	static final int MIN_PERIOD = Integer.getInteger("chord.fixFingers.minMillis", 100);
+	static final int MAX_PERIOD = Integer.getInteger("chord.fixFingers.maxMillis", 4000);
+	/* bulk or random */
+	static final boolean BULK = !"random".equals(System.getProperty("chord.fingerRefresh", "bulk"));
 
 	private Node currentNode;
 	Random random;
-	boolean status;
 
 	public FingerTable (Node node) {
 		currentNode = node;
-		status = true;
 		random = new Random();
 	}
 
 	@Override
 	public void run() {
-		while (status) {
-			int i = random.nextInt(31) + 2;
-			InetSocketAddress ithfinger = currentNode.find_nextNode(Handler.ithStart(currentNode.getId(), i));
-			currentNode.updateFingers(i, ithfinger);
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+		if (BULK) {
+			currentNode.refreshFingers();
+			return;
 		}
-	}
-	
-	// Terminate process
-	public void kill() {
-		status = false;
+		int i = random.nextInt(Handler.M - 1) + 2;
+		InetSocketAddress ithfinger = currentNode.find_nextNode(Handler.ithStart(currentNode.getId(), i));
+		currentNode.updateFingers(i, ithfinger);
 	}
 
 }
@@ -0,0 +1,122 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Immutable snapshot of a node's finger table.
+ * Entry i (1..M) holds the address of successor(nodeID + 2^(i-1)) and its
+ * precomputed ID in parallel arrays. Updates return a new snapshot, so a
+ * reader holding one never sees a half-applied change and needs no lock.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public final class Fingers {
+
+	private final long nodeId;
+	private final InetSocketAddress[] addresses;
+	private final long[] ids;
+	/* Start of each finger's interval, shared by all snapshots of the node */
+	private final long[] starts;
+
+	/**
+	 * Empty finger table of a node
+	 * Args:
+	 *       nodeId: ID of the owning node
+	 */
+	public Fingers(long nodeId) {
+		this.nodeId = nodeId;
+		this.addresses = new InetSocketAddress[Handler.M + 1];
+		this.ids = new long[Handler.M + 1];
+		this.starts = new long[Handler.M + 1];
+		for (int i = 1; i <= Handler.M; i++)
+			starts[i] = Handler.ithStart(nodeId, i);
+	}
+
+	private Fingers(Fingers from) {
+		this.nodeId = from.nodeId;
+		this.addresses = from.addresses.clone();
+		this.ids = from.ids.clone();
+		this.starts = from.starts;
+	}
+
+	public InetSocketAddress get(int i) {
+		return addresses[i];
+	}
+
+	public long id(int i) {
+		return ids[i];
+	}
+
+	public long start(int i) {
+		return starts[i];
+	}
+
+	/* Entries 1..M, in order */
+	public InetSocketAddress[] entries() {
+		return Arrays.copyOfRange(addresses, 1, Handler.M + 1);
+	}
+
+	/* Snapshot with entry i set to the address (null clears it); this one if nothing changes */
+	public Fingers with(int i, InetSocketAddress address) {
+		if (Objects.equals(addresses[i], address))
+			return this;
+		Fingers next = new Fingers(this);
+		next.addresses[i] = address;
+		next.ids[i] = address == null ? 0 : Handler.hashSocketAddress(address);
+		return next;
+	}
+
+	/* Snapshot with every entry pointing at the address cleared; this one if there is none */
+	public Fingers without(InetSocketAddress address) {
+		Fingers next = this;
+		for (int i = Handler.M; i > 0; i--) {
+			if (address.equals(addresses[i])) {
+				if (next == this)
+					next = new Fingers(this);
+				next.addresses[i] = null;
+				next.ids[i] = 0;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Highest entry that may precede the ID.
+	 * Finger i never lies before its start, 2^(i-1) past the node, so only entries
+	 * whose start precedes the ID can qualify; the bound is found in constant time
+	 * from the highest set bit of the relative ID.
+	 * Args:
+	 *       findidRelative: the ID relative to the node
+	 *
+	 * Returns:
+	 *       the index to start searching down from, 0 if no entry can precede the ID
+	 */
+	public static int highestCandidate(long findidRelative) {
+		if (findidRelative <= 1)
+			return 0;
+		return Math.min(Handler.M, 64 - Long.numberOfLeadingZeros(findidRelative - 1));
+	}
+
+	/**
+	 * Next entry at or below index i that lies strictly between the node and the ID
+	 * Args:
+	 *       findidRelative: the ID relative to the node
+	 *       i: index to start from
+	 *
+	 * Returns:
+	 *       the index of the entry, or 0 if there is none
+	 */
+	public int precedingEntry(long findidRelative, int i) {
+		for (; i > 0; i--) {
+			if (addresses[i] == null)
+				continue;
+			long relative = Handler.computeRelativeId(ids[i], nodeId);
+			if (relative > 0 && relative < findidRelative)
+				return i;
+		}
+		return 0;
+	}
+}
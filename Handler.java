@@ -7,9 +7,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A Handler class that does the following things:
@@ -25,21 +34,65 @@ import java.util.HashMap;
 
 public class Handler {
 
-	private static HashMap<Integer, Long> powerOfTwo = null;
+	/* Number of bits of an identifier, and so of finger table entries: 32 by default, at most 63
+	   so identifiers and their differences stay positive longs; all nodes of a ring must agree */
+	public static final int M = Math.max(2, Math.min(63, Integer.getInteger("chord.idBits", 32)));
+	/* Identifiers are taken modulo 2^M */
+	private static final long ID_MASK = (1L << M) - 1;
 
-	/**
-	 * Initialize the handler function to power of two for 32 finger table entries
-	 */
-	public Handler() {
-		// use the two table maps
-		powerOfTwo = new HashMap<Integer, Long>();
+	/* How identifiers are hashed:
+	   legacy - SHA-1 of the key's 32 bit Java hashCode, folded to 32 bits (the original scheme)
+	   sha1   - SHA-1 of the key bytes, the filename in UTF-8 or the IP address and port
+	   xxhash - 64 bit xxHash of the key bytes, much cheaper than SHA-1
+	   legacy is the default up to 32 bits and sha1 above; legacy cannot fill more than 32 bits */
+	static final String HASH = System.getProperty("chord.hash", M > 32 ? "sha1" : "legacy");
+
+	/* Hash Ids per RQBFSC request; responses list at most 65535 addresses */
+	public static final int BATCH_SIZE = Math.min(Integer.getInteger("chord.batchSize", 1024), 65535);
+
+	private static final long[] powerOfTwo = new long[M];
+
+	static {
 		long base = 1;
-		for (int i = 0; i <= 32; i++) {
-			powerOfTwo.put(i, base);
+		for (int i = 0; i < M; i++) {
+			powerOfTwo[i] = base;
 			base *= 2;
 		}
 	}
 
+	/* Node IDs by address: an address always hashes to the same ID, so it is hashed only once */
+	private static final int ID_CACHE_SIZE = Integer.getInteger("chord.idCacheSize", 4096);
+	private static final ConcurrentHashMap<InetSocketAddress, Long> idCache = new ConcurrentHashMap<InetSocketAddress, Long>();
+
+	/* One SHA-1 digest per thread instead of one per hash */
+	private static final ThreadLocal<MessageDigest> sha1 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	});
+
+	/**
+	 * Check the identifier settings before a node or client starts
+	 * Returns:
+	 *       the reason the settings cannot work, or null if they can
+	 */
+	public static String configurationError() {
+		if (HASH.equals("legacy") && M > 32)
+			return "chord.hash=legacy gives 32 bit identifiers, it cannot be used with chord.idBits="+M
+					+"; use chord.hash=sha1 or xxhash";
+		if (!HASH.equals("legacy") && !HASH.equals("sha1") && !HASH.equals("xxhash"))
+			return "Unknown chord.hash "+HASH+"; use legacy, sha1 or xxhash";
+		return null;
+	}
+
+	/**
+	 * The powers of two for the M finger table entries are set up once, when the class loads
+	 */
+	public Handler() {
+	}
+
 	/**
 	 * Caculate an identifier for the socket
 	 * Args: 
@@ -49,8 +102,31 @@ public class Handler {
 	 *       hash value of long type
 	 */
 	public static long hashSocketAddress (InetSocketAddress addr) {
-		int i = addr.hashCode();
-		return hashHashCode(i);
+		Long cached = idCache.get(addr);
+		if (cached != null)
+			return cached;
+		long id;
+		if (HASH.equals("legacy")) {
+			id = hashHashCode(addr.hashCode()) & ID_MASK;
+		}
+		else {
+			// the raw IP address followed by the port
+			byte[] ip = addr.getAddress().getAddress();
+			byte[] key = Arrays.copyOf(ip, ip.length + 2);
+			key[ip.length] = (byte) (addr.getPort() >> 8);
+			key[ip.length + 1] = (byte) addr.getPort();
+			id = hashBytes(key);
+		}
+		// keep the cache bounded by evicting an arbitrary entry
+		if (idCache.size() >= ID_CACHE_SIZE) {
+			Iterator<InetSocketAddress> it = idCache.keySet().iterator();
+			if (it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		idCache.put(addr, id);
+		return id;
 	}
 
 	/**
@@ -62,8 +138,31 @@ public class Handler {
 	 *        The ID for the string to long type
 	 */
 	public static long hashString (String s) {
-		int i = s.hashCode();
-		return hashHashCode(i);
+		if (HASH.equals("legacy")) {
+			int i = s.hashCode();
+			return hashHashCode(i) & ID_MASK;
+		}
+		return hashBytes(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Compute the ID of a key from all of its bytes
+	 * Args:
+	 *       key: the key bytes
+	 *
+	 * Returns:
+	 *        the first 64 bits of the hash, taken modulo 2^M
+	 */
+	private static long hashBytes(byte[] key) {
+		if (HASH.equals("xxhash"))
+			return XXHash64.hash(key, 0) & ID_MASK;
+		MessageDigest md = sha1.get();
+		md.reset();
+		byte[] digest = md.digest(key);
+		long ret = 0;
+		for (int j = 0; j < 8; j++)
+			ret = ret << 8 | (digest[j] & 0xFF);
+		return ret & ID_MASK;
 	}
 
 		
@@ -84,13 +183,8 @@ public class Handler {
 		hashbytes[2] = (byte) (i >> 8);
 		hashbytes[3] = (byte) (i);
 
-		// Initialize message digest to use SHA1
-		MessageDigest md =  null;
-		try {
-			md = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+		// Reuse this thread's SHA1 message digest
+		MessageDigest md = sha1.get();
 
 		// converting and compressing byte[4] for achieving the same
 		if (md != null) {
@@ -125,11 +219,7 @@ public class Handler {
 	 *       ret: The difference between the Ids 
 	 */
 	public static long computeRelativeId(long universal, long local) {
-		long ret = universal - local;
-		if (ret < 0) {
-			ret += powerOfTwo.get(32);
-		}
-		return ret;
+		return (universal - local) & ID_MASK;
 	}	
 
 	/**
@@ -141,7 +231,7 @@ public class Handler {
 	 *       nodeid with powerOfTwo
 	 */
 	public static long ithStart(long nodeid, int i) {
-		return (nodeid + powerOfTwo.get(i-1)) % powerOfTwo.get(32);
+		return (nodeid + powerOfTwo[i-1]) & ID_MASK;
 	}
 
 	/**
@@ -153,24 +243,23 @@ public class Handler {
 	 * Returns:
 	 *       The requested address
 	 */
-	public static InetSocketAddress requestAddress(InetSocketAddress server, String req) {
+	public static InetSocketAddress requestAddress(InetSocketAddress server, Message req) {
 		// invalid values for the parameters
 		if (server == null || req == null) {
 			return null;
 		}
 		// Compute response for the sent request
-		String response = CommunicationHandler.sendRequest(server, req);
+		Message response = CommunicationHandler.send(server, req);
 		// if response is absent - return null
 		if (response == null) {
 			return null;
 		}
 		// or return server itself 
-		else if (response.startsWith("NRP"))
+		else if (response.is("NRP"))
 			return server;
-		// return the created socket address
+		// return the decoded socket address
 		else {
-			InetSocketAddress ret = Handler.buildSocketAddress(response.split("_")[1]);
-			return ret;
+			return response.address;
 		}
 	}
 
@@ -223,11 +312,85 @@ public class Handler {
 	 */
 	public static InetSocketAddress fileSearch(InetSocketAddress localAddress, long hashValue)
 	{
-		InetSocketAddress nodeAddr = Handler.requestAddress(localAddress, "RQFSC_"+hashValue);
-		String response = CommunicationHandler.sendRequest(nodeAddr, "RQCHF_"+hashValue);
-		if(response.equals("RPEXISTS"))
+		// the entry node walks the ring to the owner, or to the first node on the way caching the file
+		// (path caching); if it cannot, walk the ring iteratively from here
+		InetSocketAddress nodeAddr = Handler.requestAddress(localAddress, Message.of("RQFSF", hashValue));
+		if (nodeAddr == null)
+			nodeAddr = Lookup.start(hashValue, Collections.singletonList(localAddress), true).join();
+		if (nodeAddr == null)
+			return null;
+		Message response = CommunicationHandler.send(nodeAddr, Message.of("RQCHF", hashValue));
+		if(response != null && response.is("RPEXISTS"))
 			return nodeAddr;
 		return null;
 	}
 
+	/**
+	 * File look up and search for many files at once.
+	 * The hash Ids are resolved with RQBFSC in batches of BATCH_SIZE, then every
+	 * node found is asked once (RQBCHF) which of its hash Ids it holds.
+	 * Args:
+	 *       addr: current node localaddress and the file hash Ids
+	 *
+	 * Returns:
+	 *       the InetNodeAddress of each file's location or null, in the order of the hash Ids
+	 */
+	public static InetSocketAddress[] fileSearchBatch(InetSocketAddress localAddress, long[] hashValues)
+	{
+		InetSocketAddress[] located = new InetSocketAddress[hashValues.length];
+		for (int from = 0; from < hashValues.length; from += BATCH_SIZE) {
+			long[] batch = Arrays.copyOfRange(hashValues, from, Math.min(hashValues.length, from + BATCH_SIZE));
+			Message owners = CommunicationHandler.send(localAddress, Message.of("RQBFSC", batch));
+			if (owners == null || !owners.is("RPBFSC") || owners.addresses == null || owners.addresses.length != batch.length)
+				continue;
+
+			// ask every owner once about all of its hash Ids
+			LinkedHashMap<InetSocketAddress, ArrayList<Integer>> byOwner = new LinkedHashMap<InetSocketAddress, ArrayList<Integer>>();
+			for (int k = 0; k < batch.length; k++)
+				if (owners.addresses[k] != null)
+					byOwner.computeIfAbsent(owners.addresses[k], owner -> new ArrayList<Integer>()).add(k);
+			for (Map.Entry<InetSocketAddress, ArrayList<Integer>> entry : byOwner.entrySet()) {
+				ArrayList<Integer> positions = entry.getValue();
+				long[] ids = new long[positions.size()];
+				for (int j = 0; j < ids.length; j++)
+					ids[j] = batch[positions.get(j)];
+				Message response = CommunicationHandler.send(entry.getKey(), Message.of("RQBCHF", ids));
+				if (response == null || !response.is("RPBCHF") || response.ids == null)
+					continue;
+				HashSet<Long> held = new HashSet<Long>();
+				for (long id : response.ids)
+					held.add(id);
+				for (int position : positions)
+					if (held.contains(batch[position]))
+						located[from + position] = entry.getKey();
+			}
+		}
+		return located;
+	}
+
+	/**
+	 * The node to read a file from: the owner or, picked at random, one of the successors it
+	 * knows to hold a copy of the file's current content (RQREPL), so reads of a hot file
+	 * spread over its replicas at the cost of one request to the owner
+	 * Args:
+	 *       owner: the node owning the file, as found by fileSearch
+	 *       hashValue: the file's hash Id
+	 *
+	 * Returns:
+	 *       the node picked, the owner if it names no copy
+	 */
+	public static InetSocketAddress chooseReplica(InetSocketAddress owner, long hashValue)
+	{
+		Message holders = CommunicationHandler.send(owner, Message.of("RQREPL", hashValue));
+		if (holders == null || !holders.is("RPREPL") || holders.addresses == null)
+			return owner;
+		ArrayList<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+		for (InetSocketAddress holder : holders.addresses)
+			if (holder != null)
+				candidates.add(holder);
+		if (candidates.isEmpty())
+			return owner;
+		return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+	}
+
 }
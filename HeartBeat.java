@@ -1,40 +1,32 @@
 import java.net.InetSocketAddress;
 
 /**
- * Heart Beat Monitoring of node
- * Check if previous node is still up and running
+ * Heart Beat Monitoring of node, run periodically
+ * Check if previous node is still up and running. The predecessor stabilizes
+ * against this node regularly, so it is only pinged once it has gone silent,
+ * and only cleared once the failure detector takes it for dead.
  */
-public class HeartBeat extends Thread {
+public class HeartBeat implements Runnable {
+
+	/* Period while the ring changes, and the most it backs off to while it is stable */
+	static final int MIN_PERIOD = Integer.getInteger("chord.heartBeat.minMillis", 250);
+	static final int MAX_PERIOD = Integer.getInteger("chord.heartBeat.maxMillis", 2000);
+
 	private Node current;
-	private boolean heartBeatStatus;
 	
 	public HeartBeat(Node plocal) {
 		current = plocal;
-		heartBeatStatus = true;
 	}
 	
 	@Override
 	public void run() {
-		while (heartBeatStatus) {
-			InetSocketAddress prevNode = current.getPredecessor();
-			if (prevNode != null) {
-				String response = CommunicationHandler.sendRequest(prevNode, "RQALV");
-				if (response == null || !response.equals("RPALV")) {
-					current.clearPredecessor();	
-				}
-
-			}
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		InetSocketAddress prevNode = current.getPredecessor();
+		if (prevNode != null && !Liveness.recentlySeen(prevNode)) {
+			Message response = CommunicationHandler.send(prevNode, Message.of("RQALV", current.getAddress()));
+			if ((response == null || !response.is("RPALV")) && Liveness.dead(prevNode)) {
+				current.clearPredecessor();	
 			}
+
 		}
 	}
-	
-	public void kill() {
-		heartBeatStatus = false;
-	}
 }
-
-
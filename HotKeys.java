@@ -0,0 +1,136 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hot key detection and path caching, run periodically.
+ * A client's file search walks the ring hop by hop (RQFSF at the node the
+ * client is connected to, then RQCPF), and every node it passes counts the
+ * key in a count-min sketch, decayed every WINDOW. Other lookups, such as
+ * those of the maintenance tasks, are not counted. An ID counted THRESHOLD
+ * times is hot: the node downloads a copy of the file from its owner into its
+ * cache, answers the file searches passing it as the file's holder, and serves
+ * RQCHF and RQGETF for it from there. As in CFS path caching, the nodes
+ * forwarding most of the searches for a popular file end them early and take
+ * its reads off the owner. A copy expires after TTL and is fetched again only if
+ * the key is still hot; an ID found not to be a file is not tried again
+ * before TTL either.
+ * The cache is off by default: it costs disk and network for the copies.
+ * chord.hot.threshold=n turns it on.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ */
+
+public class HotKeys implements Runnable {
+
+	/* File searches within about a window that make an ID hot, 0 for no cache */
+	static final int THRESHOLD = Integer.getInteger("chord.hot.threshold", 0);
+	public static final boolean ENABLED = THRESHOLD > 0;
+	/* Counts are halved once per window */
+	private static final long WINDOW = Long.getLong("chord.hot.windowMillis", 10000);
+	/* Time a cached copy is served */
+	private static final long TTL = Long.getLong("chord.hot.ttlMillis", 30000);
+	/* Cached copies held at most */
+	private static final int CAPACITY = Integer.getInteger("chord.hot.cacheFiles", 64);
+	/* Period of the expiry round, and the most it backs off to */
+	static final int MIN_PERIOD = Integer.getInteger("chord.hot.minMillis", 1000);
+	static final int MAX_PERIOD = Integer.getInteger("chord.hot.maxMillis", 5000);
+
+	private final Node currentNode;
+	private final CountMinSketch sketch = new CountMinSketch(4, Integer.getInteger("chord.hot.sketchWidth", 2048));
+	private long windowStart = System.currentTimeMillis();
+	private final File folder;
+	private final DirectoryStore store;
+	private final FileIndex cached = new FileIndex();
+	// Time each ID tried expires, cached or found not to be a file
+	private final Map<Long, Long> expiry = new ConcurrentHashMap<Long, Long>();
+	private final Set<Long> filling = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor
+	 * Args:
+	 *       currentNode: the node
+	 *       folder: folder for the cached copies, emptied as they do not outlive the node
+	 */
+	public HotKeys(Node currentNode, File folder) throws IOException {
+		this.currentNode = currentNode;
+		this.folder = folder;
+		folder.mkdirs();
+		File[] stale = folder.listFiles();
+		if (stale != null)
+			for (File file : stale)
+				file.delete();
+		store = new DirectoryStore(folder);
+	}
+
+	/* Count a file search for an ID, caching the file once the ID is hot */
+	public void record(long id) {
+		if (sketch.add(id) < THRESHOLD || expiry.containsKey(id) || cached.size() >= CAPACITY || !filling.add(id))
+			return;
+		if (!currentNode.inBackground(() -> fill(id)))
+			filling.remove(id);
+	}
+
+	/* Whether a copy of the file is cached */
+	public boolean contains(long id) {
+		Long until = expiry.get(id);
+		return until != null && until > System.currentTimeMillis() && cached.contains(id);
+	}
+
+	/* RQGETF from the cached copy, or null if there is none */
+	public Message get(Message request) {
+		if (!contains(request.id))
+			return null;
+		return FileTransfer.get(store, cached, request);
+	}
+
+	private void fill(long id) {
+		try {
+			InetSocketAddress owner = currentNode.lookupAsync(id).join();
+			if (owner == null)
+				return;
+			if (!owner.equals(currentNode.getAddress())) {
+				String name = Long.toString(id);
+				File staged = new File(folder, FileTransfer.PART_PREFIX + id);
+				if (FileTransfer.download(owner, id, staged) >= 0) {
+					store.put(id, name, staged.toPath());
+					cached.put(id, name);
+				}
+			}
+			expiry.put(id, System.currentTimeMillis() + TTL);
+		} catch (IOException | RuntimeException e) {
+			// tried again on a later lookup
+		} finally {
+			filling.remove(id);
+		}
+	}
+
+	/* Drop the copies whose time is up and age the counts */
+	@Override
+	public void run() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long, Long> entry : expiry.entrySet()) {
+			if (entry.getValue() > now)
+				continue;
+			long id = entry.getKey();
+			String name = cached.get(id);
+			if (name != null) {
+				try {
+					store.remove(id, name);
+				} catch (IOException e) {
+					continue;
+				}
+				cached.remove(id, name);
+			}
+			expiry.remove(id, entry.getValue());
+		}
+		if (now - windowStart >= WINDOW) {
+			windowStart = now;
+			sketch.decay();
+		}
+	}
+}
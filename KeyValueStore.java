@@ -0,0 +1,87 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Storage of the files a node holds: each value is a file's content, kept
+ * under the file ID as key together with the file name.
+ * The node's file table (FileIndex) is built from the store at startup and
+ * answers the lookups; the store only holds the contents. Two engines:
+ *       DirectoryStore - one plain file per value in the node's folder
+ *       SegmentStore   - values appended to log segments, indexed in memory
+ * chord.store=segments selects the log-structured engine.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public interface KeyValueStore extends Closeable {
+
+	/* A value's content: a region of an open channel, which the reader closes */
+	final class Region implements Closeable {
+		final FileChannel channel;
+		final long position;
+		final long length;
+
+		Region(FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.length = length;
+		}
+
+		@Override
+		public void close() {
+			FileTransfer.close(channel);
+		}
+	}
+
+	/**
+	 * Open the store of a node
+	 * Args:
+	 *       folder: the node's folder
+	 *
+	 * Returns:
+	 *       the engine chosen by chord.store
+	 */
+	static KeyValueStore open(String folder) throws IOException {
+		if ("segments".equals(System.getProperty("chord.store")))
+			return new SegmentStore(new File(folder));
+		return new DirectoryStore(new File(folder));
+	}
+
+	/* Every value stored, as file ID and name */
+	Iterable<Map.Entry<Long, String>> entries() throws IOException;
+
+	/* Whether the value is stored */
+	boolean contains(long key, String name);
+
+	/**
+	 * A stamp of the stored keys, for telling whether an index saved earlier still matches the store
+	 * Returns:
+	 *       a value that changes whenever keys were added or removed, 0 if the engine cannot tell
+	 */
+	long stamp();
+
+	/**
+	 * Open a value for reading
+	 * Args:
+	 *       key: the file ID
+	 *       name: the file name
+	 *
+	 * Returns:
+	 *       the region holding the content, or null if the value is not stored
+	 */
+	Region read(long key, String name) throws IOException;
+
+	/* Store a small value, replacing the one under the key */
+	void put(long key, String name, byte[] content) throws IOException;
+
+	/* Store the content of a staged file, replacing the value under the key; the staged file is gone afterwards */
+	void put(long key, String name, Path staged) throws IOException;
+
+	void remove(long key, String name) throws IOException;
+}
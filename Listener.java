@@ -1,9 +1,31 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.*;
 
 /**
- * Listener thread that keeps listening to a port and asks talker thread to process
- * when a request is accepted.
+ * Listener thread that keeps listening to a port and hands accepted requests
+ * to the Receiver for processing.
+ * One listener serves all the (virtual) nodes of the process: every node
+ * listens on its own port, all accepted by the same selector, and a request
+ * goes to the Receiver of the node whose port it arrived on.
+ *
+ * By default a single selector thread multiplexes all connections and feeds
+ * complete request frames to a small, bounded pool of worker threads. A
+ * connection is not read from while its request is being processed, and
+ * when the worker queue is full the request waits on the selector side, so
+ * a busy node pushes back on its senders through TCP flow control instead
+ * of spawning more threads. Requests whose handling waits on other nodes
+ * (Receiver.CALLS_OUT, e.g. lookups) run on a second bounded pool of callers
+ * with its own queue: nodes routing lookups through each other would
+ * otherwise fill each other's worker pools with workers all waiting on one
+ * another. When the callers are all busy and their queue is full, such a
+ * request waits on the selector side like any other.
+ * Setting chord.listener=threads restores one Receiver thread per connection,
+ * which is also the mode used when the node runs on virtual threads.
  * @author Anusha Naik
  * @author Prarthana Raghavan
  * @author Srivatsa Udupa
@@ -11,45 +33,412 @@ import java.net.*;
  */
 
 public class Listener extends Thread {
-	private Node currentNode;
-	private ServerSocket listenerSocket;
-	private boolean status;
+	/* Number of worker threads processing requests */
+	private static final int WORKERS = Integer.getInteger("chord.listener.workers", 4);
+	/* Number of threads processing the requests that call other nodes (Receiver.CALLS_OUT) */
+	private static final int CALLERS = Integer.getInteger("chord.listener.callers", 16);
+	/* Requests waiting for a worker, or for a caller, before the selector stops reading */
+	private static final int QUEUE = Integer.getInteger("chord.listener.queue", 256);
+	private static final boolean THREAD_PER_CONNECTION = "threads".equals(System.getProperty("chord.listener"));
+
+	private boolean threadPerConnection;
+	/* Listening channel of every node served */
+	private final ConcurrentHashMap<Node, ServerSocketChannel> listeners = new ConcurrentHashMap<Node, ServerSocketChannel>();
+	/* Nodes whose channel is bound but not registered with the selector yet */
+	private final ConcurrentLinkedQueue<Node> unregistered = new ConcurrentLinkedQueue<Node>();
+	private boolean started;
+	private Selector selector;
+	private ThreadPoolExecutor workers;
+	private ThreadPoolExecutor callers;
+	private volatile boolean status;
+	/* Connections whose response is ready, handed back by the workers */
+	private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+	/* Connections with a complete request the worker queue could not take yet, and the same for the callers */
+	private final ArrayDeque<Connection> stalled = new ArrayDeque<Connection>();
+	private final ArrayDeque<Connection> stalledCalls = new ArrayDeque<Connection>();
 
-	public Listener (Node currentNode) {
-		this.currentNode = currentNode;
+	/* Per connection framing state */
+	private static class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final Receiver receiver;
+		final Node node;
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		/* Request and response buffers, reused across the requests of the connection */
+		ByteBuffer body;
+		ByteBuffer response;
+		/* File content still to be sent after the response frame */
+		FileChannel file;
+		long filePosition;
+		long fileRemaining;
+		boolean inBody;
+		boolean busy;
+		/* The request being processed waits on other nodes, so it goes to the callers */
+		boolean callsOut;
+		long lastActive = System.currentTimeMillis();
+
+		Connection(SocketChannel channel, SelectionKey key, Node node) {
+			this.channel = channel;
+			this.key = key;
+			this.node = node;
+			this.receiver = new Receiver(node);
+		}
+	}
+
+	/* A fixed pool of daemon threads with a bounded queue, which rejects work when full */
+	private static ThreadPoolExecutor pool(int threads, String name) {
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE), runnable -> {
+					Thread t = new Thread(runnable, name);
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	public Listener () {
 		this.status = true;
-		InetSocketAddress currNodeAddr = currentNode.getAddress();
-		int nodePort = currNodeAddr.getPort();
+		this.threadPerConnection = THREAD_PER_CONNECTION || Threads.isVirtual();
+		try
+		{
+			selector = Selector.open();
+			if (!threadPerConnection)
+			{
+				workers = pool(WORKERS, "receiver-worker");
+				callers = pool(CALLERS, "receiver-caller");
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Cannot create socket");
+		}
+	}
+
+	/**
+	 * Start listening on the node's port, and the listener thread with the first node
+	 * Args:
+	 *       node: the node to serve
+	 *
+	 * Returns:
+	 *       true if the port could be bound
+	 */
+	public boolean add(Node node) {
 		// Create server socket to listen for incoming connections
-		try 
+		try
 		{
-			listenerSocket = new ServerSocket(nodePort);
-		} 
-		catch (Exception e) 
+			ServerSocketChannel listenerSocket = ServerSocketChannel.open();
+			listenerSocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			listenerSocket.bind(new InetSocketAddress(node.getAddress().getPort()));
+			listenerSocket.configureBlocking(false);
+			listeners.put(node, listenerSocket);
+		}
+		catch (IOException e)
 		{
 			System.out.println("Cannot create socket");
+			return false;
+		}
+		// the selector thread registers the channel itself, register() would block while it selects
+		unregistered.add(node);
+		synchronized (this)
+		{
+			if (!started)
+			{
+				started = true;
+				start();
+			}
 		}
+		selector.wakeup();
+		return true;
+	}
+
+	/* Stop listening for the node and serving its connections; the listener stops with its last node */
+	public void remove(Node node) {
+		ServerSocketChannel listenerSocket = listeners.remove(node);
+		if (listenerSocket != null)
+			closeChannel(listenerSocket);
+		if (listeners.isEmpty())
+			kill();
+		else
+			selector.wakeup();
 	}
 
 	@Override
 	public void run() {
-		while (status) 
+		long lastSweep = System.currentTimeMillis();
+		while (status)
 		{
-			Socket receiverSock = null;
-			try 
+			registerAdded();
+			try
 			{
-				receiverSock = listenerSocket.accept();
-			} 
-			catch (Exception e) 
+				selector.select(1000);
+			}
+			catch (IOException e)
 			{
 				System.out.println("Cannot establish communication");
+				continue;
 			}
-			// Create a Receiver thread to handle incoming requests
-			new Thread(new Receiver(receiverSock, currentNode)).start();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				try
+				{
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept(key);
+					else if (key.isReadable())
+						read((Connection) key.attachment());
+					else if (key.isWritable())
+						write((Connection) key.attachment());
+				}
+				catch (IOException | CancelledKeyException e)
+				{
+					if (key.attachment() instanceof Connection)
+						close((Connection) key.attachment());
+				}
+			}
+			// responses finished by the workers
+			Connection conn;
+			while ((conn = completed.poll()) != null)
+			{
+				try
+				{
+					write(conn);
+				}
+				catch (IOException | CancelledKeyException e)
+				{
+					close(conn);
+				}
+			}
+			// requests that found the worker or caller queue full
+			while (!stalled.isEmpty() && dispatch(stalled.peekFirst()))
+				stalled.pollFirst();
+			while (!stalledCalls.isEmpty() && dispatch(stalledCalls.peekFirst()))
+				stalledCalls.pollFirst();
+			long now = System.currentTimeMillis();
+			if (now - lastSweep >= 1000)
+			{
+				closeIdle(now);
+				lastSweep = now;
+			}
+		}
+		for (SelectionKey key : selector.keys())
+		{
+			if (key.attachment() instanceof Connection)
+				close((Connection) key.attachment());
+		}
+		if (workers != null)
+			workers.shutdown();
+		if (callers != null)
+			callers.shutdown();
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			// already closed
+		}
+	}
+
+	/* Register the channels of the nodes added since the last round */
+	private void registerAdded() {
+		Node node;
+		while ((node = unregistered.poll()) != null)
+		{
+			ServerSocketChannel listenerSocket = listeners.get(node);
+			if (listenerSocket == null)
+				continue;
+			try
+			{
+				listenerSocket.register(selector, SelectionKey.OP_ACCEPT, node);
+			}
+			catch (IOException e)
+			{
+				System.out.println("Cannot listen for Node at "+node.getAddress());
+			}
+		}
+	}
+
+	private void accept(SelectionKey listenerKey) throws IOException {
+		SocketChannel channel = ((ServerSocketChannel) listenerKey.channel()).accept();
+		if (channel == null)
+			return;
+		Node node = (Node) listenerKey.attachment();
+		// A Receiver thread (virtual in virtual mode) for every accepted connection
+		if (threadPerConnection)
+		{
+			Threads.start("receiver", new Receiver(channel.socket(), node));
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key, node));
+	}
+
+	/* Read the next frame; once complete, stop reading and hand it to a worker */
+	private void read(Connection conn) throws IOException {
+		if (!conn.inBody)
+		{
+			if (conn.channel.read(conn.header) < 0)
+			{
+				close(conn);
+				return;
+			}
+			if (conn.header.hasRemaining())
+				return;
+			conn.header.flip();
+			int length = conn.header.getInt();
+			conn.header.clear();
+			if (length < 0 || length > CommunicationHandler.MAX_FRAME)
+				throw new IOException("Invalid frame length "+length);
+			if (conn.body == null || conn.body.capacity() < length)
+				conn.body = ByteBuffer.allocate(Math.max(length, 256));
+			conn.body.clear();
+			conn.body.limit(length);
+			conn.inBody = true;
+		}
+		if (conn.channel.read(conn.body) < 0)
+		{
+			close(conn);
+			return;
+		}
+		if (conn.body.hasRemaining())
+			return;
+		// a node removed meanwhile takes no more requests, even on connections it accepted
+		if (!listeners.containsKey(conn.node))
+		{
+			close(conn);
+			return;
+		}
+		conn.body.flip();
+		conn.inBody = false;
+		conn.busy = true;
+		conn.lastActive = System.currentTimeMillis();
+		conn.key.interestOps(0);
+		conn.callsOut = Receiver.CALLS_OUT.contains(WireCodec.code(conn.body));
+		// the two pools stall apart, so lookups waiting for a caller do not hold up the other requests
+		ArrayDeque<Connection> queue = conn.callsOut ? stalledCalls : stalled;
+		if (!queue.isEmpty() || !dispatch(conn))
+			queue.addLast(conn);
+	}
+
+	/* Submit a request to the worker or the caller pool, false if the pool is saturated */
+	private boolean dispatch(Connection conn) {
+		try
+		{
+			if (conn.callsOut)
+				callers.execute(() -> process(conn));
+			else
+				workers.execute(() -> process(conn));
+			return true;
+		}
+		catch (RejectedExecutionException e)
+		{
+			return false;
+		}
+	}
+
+	/* Worker side: build the response frame and give it back to the selector */
+	private void process(Connection conn) {
+		// answer in the format of the request
+		boolean binary = WireCodec.isBinary(conn.body);
+		Message request = null;
+		Message response = null;
+		try
+		{
+			request = WireCodec.decode(conn.body);
+			response = conn.receiver.handleRequest(request);
+		}
+		catch (Exception e)
+		{
+			System.out.println("Cannot process request "+request+" at Node port "+conn.channel.socket().getLocalPort());
+		}
+		conn.response = WireCodec.encodeFrame(response, binary, conn.response);
+		if (response != null && response.file != null)
+		{
+			conn.file = response.file;
+			conn.filePosition = response.filePosition;
+			conn.fileRemaining = response.count;
+		}
+		completed.add(conn);
+		selector.wakeup();
+	}
+
+	/* Write the pending response; resume reading once it is fully sent */
+	private void write(Connection conn) throws IOException {
+		conn.channel.write(conn.response);
+		if (conn.response.hasRemaining())
+		{
+			conn.key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		if (conn.file != null)
+		{
+			// file content goes from disk to socket without passing through the heap
+			long sent = conn.file.transferTo(conn.filePosition, conn.fileRemaining, conn.channel);
+			conn.filePosition += sent;
+			conn.fileRemaining -= sent;
+			if (conn.fileRemaining > 0)
+			{
+				if (sent == 0 && conn.filePosition >= conn.file.size())
+					throw new IOException("File shrank while being sent");
+				conn.key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			FileTransfer.close(conn.file);
+			conn.file = null;
+		}
+		conn.busy = false;
+		conn.lastActive = System.currentTimeMillis();
+		conn.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/* Close connections left idle by their senders */
+	private void closeIdle(long now) {
+		for (SelectionKey key : selector.keys())
+		{
+			if (!(key.attachment() instanceof Connection))
+				continue;
+			Connection conn = (Connection) key.attachment();
+			if (!conn.busy && !conn.inBody
+					&& now - conn.lastActive > Receiver.IDLE_TIMEOUT)
+				close(conn);
+		}
+	}
+
+	private void close(Connection conn) {
+		conn.key.cancel();
+		FileTransfer.close(conn.file);
+		try
+		{
+			conn.channel.close();
+		}
+		catch (IOException e)
+		{
+			// already closed
+		}
+	}
+
+	private void closeChannel(ServerSocketChannel listenerSocket) {
+		try
+		{
+			listenerSocket.close();
+		}
+		catch (IOException e)
+		{
+			// already closed
 		}
 	}
 
 	public void kill() {
 		status = false;
+		for (ServerSocketChannel listenerSocket : listeners.values())
+			closeChannel(listenerSocket);
+		listeners.clear();
+		if (selector != null)
+			selector.wakeup();
 	}
 }
@@ -0,0 +1,134 @@
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of when each peer was last heard from.
+ * It is fed by the regular traffic in both directions: every response to a
+ * request sent (CommunicationHandler) and every request from a node that
+ * names itself (Receiver). A failed connection or a timed out request marks
+ * the peer as suspected until it is heard from again. Peers heard from within
+ * TRUST_WINDOW are taken to be alive without a dedicated RQALV probe.
+ * Whether a suspected peer is really dead is decided by a phi-accrual
+ * detector: the time the peer has been silent is compared with the intervals
+ * it was heard from at so far, and phi, the -log10 of the probability that a
+ * live peer stays silent this long, must reach PHI_THRESHOLD.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class Liveness {
+
+	/* How long a peer heard from is trusted to be alive; longer than the slowest stabilization period,
+	   so a predecessor that stabilizes regularly is never pinged */
+	public static final int TRUST_WINDOW = Integer.getInteger("chord.liveness.trustMillis", Stabilization.MAX_PERIOD + 1000);
+	/* Peers tracked at most; the table only ever holds addresses contacted or heard from */
+	private static final int CAPACITY = Integer.getInteger("chord.liveness.capacity", 4096);
+
+	/* phi from which a suspected peer counts as dead; 8 stands for a chance of 1e-8 to be wrong */
+	public static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("chord.phi.threshold", "8"));
+	/* Number of intervals the statistics are kept over */
+	private static final int PHI_WINDOW = Integer.getInteger("chord.phi.window", 100);
+	/* Contacts closer than this are one arrival, so bursts of requests do not shrink the intervals */
+	private static final int MIN_INTERVAL = Integer.getInteger("chord.phi.minIntervalMillis", 100);
+	/* Silence always tolerated on top of the mean interval, e.g. for a GC pause */
+	private static final int ACCEPTABLE_PAUSE = Integer.getInteger("chord.phi.pauseMillis", 1000);
+	/* Lower bound of the standard deviation, so very regular peers are not judged too early */
+	private static final int MIN_STD_DEVIATION = Integer.getInteger("chord.phi.minStdMillis", 500);
+
+	private static final class Peer {
+		volatile long lastSeen;
+		volatile long lastFailed;
+		/* Arrival intervals, a ring buffer of the last PHI_WINDOW ones */
+		private final long[] intervals = new long[PHI_WINDOW];
+		private int count;
+		private int next;
+		private double sum;
+		private double sumOfSquares;
+		private long lastArrival;
+
+		synchronized void arrived(long now) {
+			if (lastArrival != 0) {
+				long interval = now - lastArrival;
+				if (interval < MIN_INTERVAL)
+					return;
+				if (count == intervals.length) {
+					sum -= intervals[next];
+					sumOfSquares -= (double) intervals[next] * intervals[next];
+				} else {
+					count++;
+				}
+				intervals[next] = interval;
+				next = (next + 1) % intervals.length;
+				sum += interval;
+				sumOfSquares += (double) interval * interval;
+			}
+			lastArrival = now;
+		}
+
+		synchronized double phi(long now) {
+			if (lastSeen == 0)
+				return Double.POSITIVE_INFINITY;
+			// without intervals yet, expect the peer at the slowest stabilization period
+			double mean = count == 0 ? Stabilization.MAX_PERIOD : sum / count;
+			double variance = count == 0 ? mean * mean / 16 : sumOfSquares / count - mean * mean;
+			double std = Math.max(MIN_STD_DEVIATION, Math.sqrt(Math.max(variance, 0)));
+			// logistic approximation of the normal distribution's tail
+			double y = (now - lastSeen - mean - ACCEPTABLE_PAUSE) / std;
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+			if (y > 0)
+				return -Math.log10(e / (1 + e));
+			return -Math.log10(1 - 1 / (1 + e));
+		}
+	}
+
+	private static final ConcurrentHashMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<InetSocketAddress, Peer>();
+
+	private static Peer peer(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		if (peer != null)
+			return peer;
+		if (peers.size() >= CAPACITY) {
+			// drop any one entry, like the ID cache does
+			Iterator<InetSocketAddress> it = peers.keySet().iterator();
+			if (it.hasNext())
+				peers.remove(it.next());
+		}
+		return peers.computeIfAbsent(address, a -> new Peer());
+	}
+
+	/* The peer answered or sent a request */
+	public static void seen(InetSocketAddress address) {
+		if (address == null)
+			return;
+		Peer peer = peer(address);
+		long now = System.currentTimeMillis();
+		peer.arrived(now);
+		peer.lastSeen = now;
+	}
+
+	/* A connection to the peer failed or a request to it timed out */
+	public static void failed(InetSocketAddress address) {
+		if (address != null)
+			peer(address).lastFailed = System.currentTimeMillis();
+	}
+
+	/* Whether the peer was heard from within the trust window and has not failed since */
+	public static boolean recentlySeen(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		if (peer == null)
+			return false;
+		long lastSeen = peer.lastSeen;
+		return lastSeen >= peer.lastFailed && System.currentTimeMillis() - lastSeen <= TRUST_WINDOW;
+	}
+
+	/* Whether the last contact with the peer failed and it has been silent long enough to be taken for dead */
+	public static boolean dead(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		if (peer == null)
+			return true;
+		return peer.lastFailed > peer.lastSeen && peer.phi(System.currentTimeMillis()) >= PHI_THRESHOLD;
+	}
+}
@@ -0,0 +1,151 @@
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of which node owns which part of the ring.
+ * Each entry is a range (lower, owner ID] and the owner's address, keyed by the
+ * owner ID so the range holding an ID is found with one ceiling search. A lookup
+ * result first caches only the range from the looked up ID to the owner; once a
+ * hit is validated against the owner's predecessor the range is widened to all
+ * of the owner's keys. The least recently used entry is evicted when full.
+ * Entries may go stale under churn: callers validate a hit before trusting it and
+ * drop the entries of nodes whose ranges changed.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class LocationCache {
+
+	/* Maximum number of cached ranges */
+	public static final int CAPACITY = Integer.getInteger("chord.locationCache", 1024);
+
+	private static final class Range {
+		final long lower;
+		final long upper;
+		final InetSocketAddress owner;
+
+		Range(long lower, long upper, InetSocketAddress owner) {
+			this.lower = lower;
+			this.upper = upper;
+			this.owner = owner;
+		}
+	}
+
+	/* Ranges by owner ID */
+	private final TreeMap<Long, Range> ranges = new TreeMap<Long, Range>();
+	/* The same ranges, least recently used first */
+	private final LinkedHashMap<Long, Range> recency = new LinkedHashMap<Long, Range>(16, 0.75f, true);
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder stale = new LongAdder();
+
+	/**
+	 * Owner of the ID as last known
+	 * Args:
+	 *       id: the ID looked up
+	 *
+	 * Returns:
+	 *       the cached owner, or null on a miss
+	 */
+	public InetSocketAddress get(long id) {
+		lock.lock();
+		try {
+			// the range holding the ID ends at the first owner at or after it, wrapping around the ring
+			Map.Entry<Long, Range> entry = ranges.ceilingEntry(id);
+			if (entry == null)
+				entry = ranges.firstEntry();
+			if (entry != null && Lookup.between(id, entry.getValue().lower, entry.getKey())) {
+				recency.get(entry.getKey());
+				hits.increment();
+				return entry.getValue().owner;
+			}
+			misses.increment();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remember that the owner holds the IDs in (lower, owner ID]
+	 * Args:
+	 *       lower: exclusive lower end of the range
+	 *       owner: the owning node
+	 *       exact: whether lower is the owner's predecessor, replacing any range known before;
+	 *              otherwise the known range is only ever widened
+	 */
+	public void put(long lower, InetSocketAddress owner, boolean exact) {
+		long upper = Handler.hashSocketAddress(owner);
+		lock.lock();
+		try {
+			Range known = ranges.get(upper);
+			if (known != null && known.owner.equals(owner) && !exact
+					&& Handler.computeRelativeId(upper, known.lower) >= Handler.computeRelativeId(upper, lower)) {
+				recency.get(upper);
+				return;
+			}
+			Range range = new Range(lower, upper, owner);
+			ranges.put(upper, range);
+			recency.put(upper, range);
+			if (recency.size() > CAPACITY) {
+				Iterator<Long> eldest = recency.keySet().iterator();
+				ranges.remove(eldest.next());
+				eldest.remove();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Drop the range owned by the node, whose keys have changed hands */
+	public void invalidate(InetSocketAddress owner) {
+		if (owner == null)
+			return;
+		long upper = Handler.hashSocketAddress(owner);
+		lock.lock();
+		try {
+			Range known = ranges.get(upper);
+			if (known != null && known.owner.equals(owner)) {
+				ranges.remove(upper);
+				recency.remove(upper);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Count a hit that turned out to be stale on validation */
+	public void stale() {
+		stale.increment();
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long staleHits() {
+		return stale.sum();
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return ranges.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
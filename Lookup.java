@@ -0,0 +1,130 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterative lookup of the node responsible for an ID.
+ * Every hop is a single RQCPS request: the asked node either names the owner
+ * of the ID (its successor, when the ID falls between the two) or returns its
+ * closest preceding fingers. Up to ALPHA of the closest known candidates are
+ * asked at the same time and the lookup moves on as soon as any of them
+ * answers, so one slow or dead node does not stall it.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class Lookup {
+
+	/* Number of candidates asked in parallel */
+	public static final int ALPHA = Integer.getInteger("chord.lookup.alpha", 1);
+	/* Number of preceding fingers a node returns for RQCPS */
+	public static final int FANOUT = Math.max(ALPHA, 3);
+	/* Upper bound on the number of nodes asked by one lookup */
+	private static final int MAX_QUERIES = Integer.getInteger("chord.lookup.maxQueries", 4 * Handler.M);
+
+	private final long id;
+	/* RQCPS, or RQCPF for the hops of a client's file search */
+	private final String code;
+	/* Known candidates not asked yet, closest preceding one first */
+	private final ArrayList<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+	private final HashSet<InetSocketAddress> seen = new HashSet<InetSocketAddress>();
+	/* Responses of the requests in flight, null standing for no response */
+	private final LinkedBlockingQueue<Message[]> responses = new LinkedBlockingQueue<Message[]>();
+
+	private Lookup(long id, List<InetSocketAddress> seeds, boolean fileSearch) {
+		this.id = id;
+		this.code = fileSearch ? "RQCPF" : "RQCPS";
+		for (InetSocketAddress seed : seeds)
+			offer(seed);
+	}
+
+	/**
+	 * Start looking up the owner of the ID
+	 * Args:
+	 *       id: the ID to look up
+	 *       seeds: nodes preceding the ID to start from
+	 *
+	 * Returns:
+	 *       future completing with the owner's address, or with null if the lookup found no way on
+	 */
+	public static CompletableFuture<InetSocketAddress> start(long id, List<InetSocketAddress> seeds) {
+		return start(id, seeds, false);
+	}
+
+	/**
+	 * Start looking up the owner of the ID, or for a client's file search a node holding a copy
+	 * Args:
+	 *       id: the ID to look up
+	 *       seeds: nodes preceding the ID to start from
+	 *       fileSearch: the hops count the search toward the key turning hot (RQCPF), and a node
+	 *                   with a cached copy of the file may answer in place of the owner
+	 *
+	 * Returns:
+	 *       future completing with the node's address, or with null if the lookup found no way on
+	 */
+	public static CompletableFuture<InetSocketAddress> start(long id, List<InetSocketAddress> seeds, boolean fileSearch) {
+		Lookup lookup = new Lookup(id, seeds, fileSearch);
+		return CompletableFuture.supplyAsync(lookup::run, Threads.executor());
+	}
+
+	/* Whether id lies in the ring interval (from, to] */
+	public static boolean between(long id, long from, long to) {
+		long idRelative = Handler.computeRelativeId(id, from);
+		long toRelative = Handler.computeRelativeId(to, from);
+		return toRelative == 0 || (idRelative > 0 && idRelative <= toRelative);
+	}
+
+	private InetSocketAddress run() {
+		int inFlight = 0;
+		int queries = 0;
+		while (true) {
+			// keep up to ALPHA requests going to the closest candidates
+			while (inFlight < ALPHA && !candidates.isEmpty() && queries < MAX_QUERIES) {
+				InetSocketAddress next = candidates.remove(0);
+				CompletableFuture.runAsync(() -> {
+					Message response = CommunicationHandler.send(next, Message.of(code, id));
+					responses.add(new Message[] { response });
+				}, Threads.executor());
+				inFlight++;
+				queries++;
+			}
+			if (inFlight == 0)
+				return null;
+			Message response;
+			try {
+				Message[] arrived = responses.poll(2L * CommunicationHandler.READ_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (arrived == null)
+					return null;
+				response = arrived[0];
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			inFlight--;
+			if (response == null)
+				continue;
+			if (response.is("RPCPSF") && response.address != null)
+				return response.address;
+			if (response.is("RPCPS") && response.addresses != null)
+				for (InetSocketAddress candidate : response.addresses)
+					offer(candidate);
+		}
+	}
+
+	/* Add a candidate not seen before, keeping the list ordered by closeness to the ID */
+	private void offer(InetSocketAddress candidate) {
+		if (candidate == null || !seen.add(candidate))
+			return;
+		long distance = Handler.computeRelativeId(id, Handler.hashSocketAddress(candidate));
+		int i = 0;
+		while (i < candidates.size() && Handler.computeRelativeId(id, Handler.hashSocketAddress(candidates.get(i))) <= distance)
+			i++;
+		candidates.add(i, candidate);
+	}
+}
@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the periodic maintenance of the nodes of the process (stabilization,
+ * finger table refresh, heart beat, and replication, hot key expiry and
+ * snapshots where enabled) on one scheduled executor, with a thread per task
+ * scheduled so a round blocked on the network, such as a replication round
+ * streaming files, does not hold up the others.
+ * Each task runs one round at a time and is rescheduled with an adaptive
+ * period: while the node's routing state keeps its version the period doubles
+ * up to the task's maximum, and as soon as the version moves, or the node
+ * reports a change through hurry(), it drops back to the minimum.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class Maintenance {
+
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final ArrayList<Task> tasks = new ArrayList<Task>();
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor
+	 * Args:
+	 *       nodes: number of nodes whose tasks the executor runs
+	 */
+	public Maintenance(int nodes) {
+		// grown to one thread per task as tasks are scheduled
+		scheduler = new ScheduledThreadPoolExecutor(Math.max(1, nodes), Threads.factory("maintenance"));
+		// nothing left over runs once shut down
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Start running a task periodically
+	 * Args:
+	 *       node: the node whose routing state decides the period
+	 *       round: one round of the task
+	 *       minMillis: period while the routing state changes
+	 *       maxMillis: period the task backs off to while it does not
+	 */
+	public void schedule(Node node, Runnable round, long minMillis, long maxMillis) {
+		Task task = new Task(node, round, minMillis, maxMillis);
+		synchronized (tasks) {
+			tasks.add(task);
+			if (scheduler.getCorePoolSize() < tasks.size())
+				scheduler.setCorePoolSize(tasks.size());
+		}
+		task.hurry();
+	}
+
+	/* Run every task of the node again soon, at its minimum period */
+	public void hurry(Node node) {
+		synchronized (tasks) {
+			for (Task task : tasks)
+				if (task.node == node)
+					task.hurry();
+		}
+	}
+
+	/* Stop the tasks of the node, waiting for its running rounds; the executor is shut down with the last node */
+	public void stop(Node node) {
+		boolean last;
+		ArrayList<Task> stopped = new ArrayList<Task>();
+		synchronized (tasks) {
+			for (Task task : tasks)
+				if (task.node == node) {
+					task.cancel();
+					stopped.add(task);
+				}
+			tasks.removeIf(task -> task.node == node);
+			last = tasks.isEmpty();
+			if (!last)
+				scheduler.setCorePoolSize(tasks.size());
+		}
+		for (Task task : stopped)
+			task.awaitIdle();
+		if (last)
+			shutdown();
+	}
+
+	/**
+	 * Stop all tasks: no round starts after this, and the rounds running are waited for
+	 * Returns:
+	 *       true if every round finished in time, false if some had to be interrupted
+	 */
+	public boolean shutdown() {
+		running = false;
+		scheduler.shutdown();
+		try {
+			if (scheduler.awaitTermination(CommunicationHandler.CONNECT_TIMEOUT + CommunicationHandler.READ_TIMEOUT, TimeUnit.MILLISECONDS))
+				return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler.shutdownNow();
+		return false;
+	}
+
+	private final class Task {
+		private final Node node;
+		private final Runnable round;
+		private final long minMillis;
+		private final long maxMillis;
+		private long period;
+		private long seenVersion = -1;
+		// schedules still pending from before a hurry() are recognised by their generation and skipped
+		private long generation;
+		private ScheduledFuture<?> next;
+		private boolean busy;
+		private boolean hurried;
+		private boolean cancelled;
+
+		Task(Node node, Runnable round, long minMillis, long maxMillis) {
+			this.node = node;
+			this.round = round;
+			this.minMillis = minMillis;
+			this.maxMillis = maxMillis;
+			this.period = minMillis;
+		}
+
+		private void runRound(long scheduled) {
+			synchronized (this) {
+				if (!running || cancelled || scheduled != generation)
+					return;
+				busy = true;
+			}
+			try {
+				round.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			long version = node.getRoutingState().version;
+			synchronized (this) {
+				busy = false;
+				notifyAll();
+				if (hurried || version != seenVersion)
+					period = minMillis;
+				else
+					period = Math.min(2 * period, maxMillis);
+				hurried = false;
+				seenVersion = version;
+				scheduleNext(period);
+			}
+		}
+
+		synchronized void hurry() {
+			if (busy) {
+				hurried = true;
+				return;
+			}
+			if (next != null)
+				next.cancel(false);
+			period = minMillis;
+			scheduleNext(minMillis);
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			if (next != null)
+				next.cancel(false);
+		}
+
+		/* Wait for a running round to finish */
+		synchronized void awaitIdle() {
+			while (busy) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		/* Called holding the task's lock */
+		private void scheduleNext(long delay) {
+			if (!running || cancelled)
+				return;
+			long scheduled = ++generation;
+			try {
+				next = scheduler.schedule(() -> runRound(scheduled), delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// shut down meanwhile
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+
+/**
+ * A request or response exchanged between nodes.
+ * The code (RQIM, RPCSC, ...) decides which of the fields are used; the
+ * field layout of every code is described in WireCodec, which turns a
+ * message into the legacy underscore-delimited text or the binary format.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class Message {
+
+	final String code;
+	long id;
+	InetSocketAddress address;
+	String[] names;
+	InetSocketAddress[] addresses;
+	long[] ids;
+	long offset;
+	byte[] data;
+	long count;
+	long checksum;
+	// Length of the whole file a range belongs to
+	long total;
+	// File content following a response frame on the wire, count bytes from filePosition; not encoded
+	FileChannel file;
+	long filePosition;
+
+	public Message(String code) {
+		this.code = code;
+	}
+
+	/* Message without fields, e.g. RQCSC */
+	public static Message of(String code) {
+		return new Message(code);
+	}
+
+	/* Message carrying an identifier, e.g. RQIM_hashId */
+	public static Message of(String code, long id) {
+		Message m = new Message(code);
+		m.id = id;
+		return m;
+	}
+
+	/* Message carrying a node address, e.g. RPCSC_nodeIP:nodePort */
+	public static Message of(String code, InetSocketAddress address) {
+		Message m = new Message(code);
+		m.address = address;
+		return m;
+	}
+
+	/* Message carrying a list of file names, e.g. RQFTX_filename1_filename2 */
+	public static Message of(String code, String[] names) {
+		Message m = new Message(code);
+		m.names = names;
+		return m;
+	}
+
+	/* Message carrying a list of identifiers, e.g. RQBFSC_hashId1_hashId2 */
+	public static Message of(String code, long[] ids) {
+		Message m = new Message(code);
+		m.ids = ids;
+		return m;
+	}
+
+	/* Message carrying an address and a list of addresses, e.g. RPSTB */
+	public static Message of(String code, InetSocketAddress address, InetSocketAddress[] addresses) {
+		Message m = new Message(code);
+		m.address = address;
+		m.addresses = addresses;
+		return m;
+	}
+
+	/* Part of a file in a streamed transfer, e.g. RQXPUT: the file ID, the offset of the bytes and the bytes */
+	public static Message chunk(String code, long id, long offset, byte[] data) {
+		Message m = new Message(code);
+		m.id = id;
+		m.offset = offset;
+		m.data = data;
+		return m;
+	}
+
+	/* Message carrying a byte offset, e.g. RPXACK_bytesHeld */
+	public static Message offset(String code, long offset) {
+		Message m = new Message(code);
+		m.offset = offset;
+		return m;
+	}
+
+	/* Request for a byte range of a file, e.g. RQGETF_hashId_offset_count */
+	public static Message range(String code, long id, long offset, long count) {
+		Message m = new Message(code);
+		m.id = id;
+		m.offset = offset;
+		m.count = count;
+		return m;
+	}
+
+	public boolean is(String code) {
+		return this.code.equals(code);
+	}
+
+	@Override
+	public String toString() {
+		return WireCodec.toText(this);
+	}
+}
@@ -9,20 +9,63 @@
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.*;
 
 public class Node {
 
 	private long nodeID;
 	private InetSocketAddress nodeAddress;
-	private InetSocketAddress prevNode;
-	private HashMap<Integer, InetSocketAddress> fingerTable;
-	private HashMap<Long, String> filesTable;
+	// Predecessor and finger table; readers use the current state without locking,
+	// writers install a new state with compare-and-set
+	private final AtomicReference<RoutingState> routing;
+	// Files held by the node, sorted by ID; read and updated by the Receiver threads without locking
+	private final FileIndex filesTable = new FileIndex();
+	// Contents of the files, in the engine chosen by chord.store
+	private KeyValueStore store;
+	// Copies of files owned by the predecessors (chord.replicas), kept apart in the .replicas folder
+	private KeyValueStore replicaStore;
+	private final FileIndex replicaTable = new FileIndex();
+	// Successors holding copies of this node's files, with the file index version they were last brought to
+	private final Map<InetSocketAddress, Long> replicaSynced = new ConcurrentHashMap<InetSocketAddress, Long>();
+	// The CRC32 of each copy those successors were last found or made to hold, by file ID
+	private final Map<InetSocketAddress, Map<Long, Long>> replicaHeld = new ConcurrentHashMap<InetSocketAddress, Map<Long, Long>>();
 	private InetSocketAddress nextNode;
-	private Listener listenerObj;
+	// Listener and maintenance may be shared with the other virtual nodes of the process
+	private final Listener listenerObj;
 	private Stabilization stabilizeObj;
 	private FingerTable fingerTableObj;
 	private HeartBeat heartBeatObj;
+	private Replication replicationObj;
+	// File searches per key not held here, and copies of the hot ones (chord.hot.*, off by default)
+	private HotKeys hotKeys;
+	// Runs the maintenance tasks above, and snapshots, with periods adapting to routing changes
+	private final Maintenance maintenance;
+	// Transfers running in the background, waited for before the stores are closed; guarded by itself
+	private final Set<CompletableFuture<Void>> transfers = new HashSet<CompletableFuture<Void>>();
+	private boolean stopping;
+	// Folder holding the files of this node
+	private final String fileFolder;
+	// Folder holding the copies, where copies being received are staged too
+	private final String replicaFolder;
+	// Copy the successor's finger table as a first guess of the own when joining
+	private static final boolean SEED_FINGERS = !"false".equals(System.getProperty("chord.fingerSeed"));
+	// Serializes the successor repairs, which span several updates and network calls;
+	// a lock rather than synchronized so virtual threads blocked inside do not pin their carrier
+	private final ReentrantLock repairLock = new ReentrantLock();
+	// Owners of recently looked up IDs; entries of nodes next to a routing change are dropped
+	private final LocationCache locationCache = new LocationCache();
+	// Snapshot of the file index and routing state, next to the file folder so writing it leaves the folder untouched
+	private final File snapshotFile;
+	// Routing state and file index version written to the snapshot last
+	private long savedVersion = -1;
+	private long savedChanges = -1;
+	// Files restored from the snapshot which the store has not confirmed yet
+	private final Set<Long> unverifiedFiles = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Constructor
@@ -30,24 +73,44 @@ public class Node {
 	 *       address: local address of current node
 	 **/
 	public Node (InetSocketAddress address) {
+		this(address, new Listener(), new Maintenance(1), "Files");
+	}
+
+	/**
+	 * Constructor for one of several virtual nodes of a process
+	 * Args:
+	 *       address: local address of current node, a port of its own
+	 *       listener: listener shared by the virtual nodes
+	 *       maintenance: maintenance executor shared by the virtual nodes
+	 *       fileFolder: folder holding the files of this node
+	 **/
+	public Node (InetSocketAddress address, Listener listener, Maintenance maintenance, String fileFolder) {
 		nodeAddress = address;
 		nodeID = Handler.hashSocketAddress(nodeAddress);
-
-		// Create an empty fingerTable for maintaining 32 entries
-		fingerTable = new HashMap<Integer, InetSocketAddress>();
-		for (int i = 1; i <= 32; i++) {
-			updateIthFinger (i, null);
-		}
-
-		
-		prevNode = null;
+		this.maintenance = maintenance;
+		this.fileFolder = fileFolder;
+		this.replicaFolder = new File(fileFolder, ".replicas").getPath();
+		File folder = new File(fileFolder).getAbsoluteFile();
+		snapshotFile = new File(folder.getParentFile(), folder.getName()+".snapshot");
+		Snapshot snapshot = Snapshot.ENABLED ? Snapshot.read(snapshotFile, nodeID) : null;
+
+		// Create a finger table for maintaining M entries, warm from the snapshot if there is one, and no predecessor;
+		// the predecessor notifies this node again once it is back
+		Fingers fingers = new Fingers(nodeID);
+		if (snapshot != null)
+			for (int i = 1; i <= Handler.M; i++)
+				if (snapshot.fingers[i] != null && !snapshot.fingers[i].equals(nodeAddress))
+					fingers = fingers.with(i, snapshot.fingers[i]);
+		routing = new AtomicReference<RoutingState>(new RoutingState(0, null, fingers,
+				snapshot == null ? new InetSocketAddress[0] : snapshot.successors));
 
 		// Initialize for enabling them to update after every operation
-		listenerObj = new Listener(this);
+		listenerObj = listener;
 		stabilizeObj = new Stabilization(this);
 		fingerTableObj = new FingerTable(this);
 		heartBeatObj = new HeartBeat(this);
-		nodeFileSystemUpdate();
+		replicationObj = new Replication(this);
+		nodeFileSystemUpdate(snapshot);
 	}
 	
 	/**
@@ -69,13 +132,17 @@ public class Node {
 	}
 	public InetSocketAddress getPredecessor() 
 	{
-		return prevNode;
+		return routing.get().predecessor;
 	}
 	public InetSocketAddress getSuccessor() {
-		if (fingerTable != null && fingerTable.size() > 0) {
-			return fingerTable.get(1);
-		}
-		return null;
+		return routing.get().successor();
+	}
+	/* Consistent snapshot of predecessor and finger table */
+	public RoutingState getRoutingState() {
+		return routing.get();
+	}
+	public LocationCache getLocationCache() {
+		return locationCache;
 	}
 
 	/**
@@ -89,22 +156,44 @@ public class Node {
 	 */
 	public boolean joinRing(InetSocketAddress connectorNodeAddr) 
 	{
+		// Listen before any other node learns about this one
+		if (!listenerObj.add(this))
+			return false;
+
+		// A node restarted from a snapshot rejoins through the nodes it knew, and creates the ring only if none is left
+		if ((connectorNodeAddr == null || connectorNodeAddr.equals(nodeAddress)) && getSuccessor() != null) {
+			connectorNodeAddr = knownPeer();
+			if (connectorNodeAddr == null)
+				routing.set(new RoutingState(0, null, new Fingers(nodeID), new InetSocketAddress[0]));
+		}
+
 		// If the address is null or is equal to current IP address - then it will be creating
 		if (connectorNodeAddr != null && !connectorNodeAddr.equals(nodeAddress)) {
-			nextNode = Handler.requestAddress(connectorNodeAddr, "RQFSC_" + nodeID);
+			nextNode = Handler.requestAddress(connectorNodeAddr, Message.of("RQFSC", nodeID));
+			// the ring may still list this node from before a restart: the successor is then the node after it
+			if (nodeAddress.equals(nextNode))
+				nextNode = Handler.requestAddress(connectorNodeAddr, Message.of("RQFSC", Handler.ithStart(nodeID, 1)));
 			if (nextNode == null)  {
 				System.out.println("\nError: Unable to locate the node.\n");
+				listenerObj.remove(this);
 				return false;
 			}
 			updateIthFinger(1, nextNode);
+			if (SEED_FINGERS)
+				seedFingers(nextNode);
 		}
 
 		// As soon as any node creates/joins the network - values to be updated : 
 		// finger table values, predecessor and nextNodes	
-		listenerObj.start();
-		stabilizeObj.start();
-		fingerTableObj.start();
-		heartBeatObj.start();
+		maintenance.schedule(this, stabilizeObj, Stabilization.MIN_PERIOD, Stabilization.MAX_PERIOD);
+		maintenance.schedule(this, fingerTableObj, FingerTable.MIN_PERIOD, FingerTable.MAX_PERIOD);
+		maintenance.schedule(this, heartBeatObj, HeartBeat.MIN_PERIOD, HeartBeat.MAX_PERIOD);
+		if (Replication.REPLICAS > 1)
+			maintenance.schedule(this, replicationObj, Replication.MIN_PERIOD, Replication.MAX_PERIOD);
+		if (HotKeys.ENABLED)
+			maintenance.schedule(this, hotKeys, HotKeys.MIN_PERIOD, HotKeys.MAX_PERIOD);
+		if (Snapshot.ENABLED)
+			maintenance.schedule(this, this::saveSnapshot, Snapshot.MIN_PERIOD, Snapshot.MAX_PERIOD);
 		if(connectorNodeAddr != null && !connectorNodeAddr.equals(nodeAddress))
 		{
 			fileExchange();
@@ -113,17 +202,33 @@ public class Node {
 		return true;
 	}
 
+	/* The first of the successors and fingers restored from the snapshot that is still alive, or null */
+	private InetSocketAddress knownPeer() {
+		RoutingState state = routing.get();
+		LinkedHashSet<InetSocketAddress> peers = new LinkedHashSet<InetSocketAddress>(Arrays.asList(state.successorList()));
+		for (InetSocketAddress finger : state.fingers.entries())
+			if (finger != null)
+				peers.add(finger);
+		peers.remove(nodeAddress);
+		for (InetSocketAddress peer : peers) {
+			Message response = CommunicationHandler.send(peer, Message.of("RQALV", nodeAddress));
+			if (response != null && response.is("RPALV"))
+				return peer;
+		}
+		return null;
+	}
+
 	/**
 	 * Provide the predecessor address to the nextNode
 	 * Args:
 	 * 		nextNode : nextNode address
 	 *
 	 *  Returns:
-	 *  	response given by the send request/null
+	 *  	response given by the node/null
 	 */
-	public String notify(InetSocketAddress nextNode) {
+	public Message notify(InetSocketAddress nextNode) {
 		if (nextNode!=null && !nextNode.equals(nodeAddress))
-			return CommunicationHandler.sendRequest(nextNode, "RQPNGPRE_"+nodeAddress.getAddress().toString()+":"+nodeAddress.getPort());
+			return CommunicationHandler.send(nextNode, Message.of("RQPNGPRE", nodeAddress));
 		else
 			return null;
 	}
@@ -137,15 +242,22 @@ public class Node {
 	 *       returns nothing
 	 */
 	public void notified (InetSocketAddress newpre) {
-		if (prevNode == null || prevNode.equals(nodeAddress)) {
-			this.setPredecessor(newpre);
-		}
-		else {
-			long oldPreId = Handler.hashSocketAddress(prevNode);
-			long localRelativeId = Handler.computeRelativeId(nodeID, oldPreId);
-			long newpreRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(newpre), oldPreId);
-			if (newpreRelativeId > 0 && newpreRelativeId < localRelativeId)
-				this.setPredecessor(newpre);
+		// retry when another writer changed the state between the check and the update
+		while (true) {
+			RoutingState state = routing.get();
+			InetSocketAddress prevNode = state.predecessor;
+			if (prevNode != null && !prevNode.equals(nodeAddress)) {
+				long oldPreId = Handler.hashSocketAddress(prevNode);
+				long localRelativeId = Handler.computeRelativeId(nodeID, oldPreId);
+				long newpreRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(newpre), oldPreId);
+				if (!(newpreRelativeId > 0 && newpreRelativeId < localRelativeId))
+					return;
+			}
+			if (routing.compareAndSet(state, state.withPredecessor(newpre))) {
+				if (!Objects.equals(prevNode, newpre))
+					maintenance.hurry(this);
+				return;
+			}
 		}
 	}
 	public InetSocketAddress find_nextNode (long id) {
@@ -158,7 +270,7 @@ public class Node {
 
 		// If predecessor is not the local node - then request the nextNode
 		if (!pre.equals(nodeAddress))
-			ret = Handler.requestAddress(pre, "RQCSC");
+			ret = Handler.requestAddress(pre, Message.of("RQCSC"));
 
 		// Return the local address in case of no nextNode found
 		if (ret == null)
@@ -167,6 +279,178 @@ public class Node {
 		return ret;
 	}
 
+	/**
+	 * Look up the node responsible for the ID without blocking the caller.
+	 * A cached owner is used once its predecessor confirms the ID is still in its
+	 * range. Otherwise the lookup is iterative and asks each hop a single RQCPS;
+	 * if it finds no way on, the blocking find_nextNode is used instead.
+	 * Args:
+	 *       id: the ID to look up
+	 *
+	 * Returns:
+	 *       future completing with the address of the ID's successor
+	 */
+	public CompletableFuture<InetSocketAddress> lookupAsync(long id) {
+		return lookupAsync(id, false);
+	}
+
+	/**
+	 * Look up the node responsible for the ID, or for a client's file search the first node
+	 * on the way holding a cached copy of the file. A file search walks the ring hop by hop
+	 * (RQCPF) so every node it passes counts it; its result may not be the owner, so it
+	 * neither uses nor fills the location cache.
+	 * Args:
+	 *       id: the ID to look up
+	 *       fileSearch: whether the lookup is a client's file search
+	 *
+	 * Returns:
+	 *       future completing with the address of the ID's successor, or of a node caching the file
+	 */
+	public CompletableFuture<InetSocketAddress> lookupAsync(long id, boolean fileSearch) {
+		if (fileSearch && hasCachedCopy(id))
+			return CompletableFuture.completedFuture(nodeAddress);
+		Message step = closestPrecedingStep(id);
+		if (step.is("RPCPSF"))
+			return CompletableFuture.completedFuture(step.address);
+		InetSocketAddress cached = fileSearch ? null : locationCache.get(id);
+		CompletableFuture<InetSocketAddress> validated = cached == null ? CompletableFuture.completedFuture(null)
+				: CompletableFuture.supplyAsync(() -> validateOwner(id, cached), Threads.executor());
+		return validated.thenCompose(known -> {
+			if (known != null)
+				return CompletableFuture.completedFuture(known);
+			return Lookup.start(id, Arrays.asList(step.addresses), fileSearch).thenCompose(owner -> {
+				if (owner != null) {
+					if (!fileSearch)
+						locationCache.put(Handler.computeRelativeId(id, 1), owner, false);
+					return CompletableFuture.completedFuture(owner);
+				}
+				return CompletableFuture.supplyAsync(() -> find_nextNode(id), Threads.executor());
+			});
+		});
+	}
+
+	/**
+	 * Check a cached owner in one hop: the ID must lie between its predecessor and itself
+	 * Args:
+	 *       id: the ID looked up
+	 *       owner: the cached owner
+	 *
+	 * Returns:
+	 *       the owner if still responsible for the ID, null if the entry was stale
+	 */
+	private InetSocketAddress validateOwner(long id, InetSocketAddress owner) {
+		Message response = CommunicationHandler.send(owner, Message.of("RQEPR"));
+		if (response != null && response.is("RPEPR") && response.address != null) {
+			long preId = Handler.hashSocketAddress(response.address);
+			if (Lookup.between(id, preId, Handler.hashSocketAddress(owner))) {
+				// the whole range of the owner is now known
+				locationCache.put(preId, owner, true);
+				return owner;
+			}
+		}
+		locationCache.invalidate(owner);
+		locationCache.stale();
+		return null;
+	}
+
+	/**
+	 * One hop of an iterative lookup, answered from the local routing state only
+	 * Args:
+	 *       id: the ID being looked up
+	 *
+	 * Returns:
+	 *       RPCPSF with the owner when the ID lies between this node and its successor,
+	 *       otherwise RPCPS with the closest preceding fingers, closest first
+	 */
+	public Message closestPrecedingStep(long id) {
+		return closestPrecedingStep(routing.get(), id, Lookup.FANOUT);
+	}
+
+	/* RQCPF: one hop of a client's file search, counted toward the key turning hot; a node with a cached copy of the file ends the search */
+	public Message fileSearchStep(long id) {
+		recordAccess(id);
+		if (hasCachedCopy(id))
+			return Message.of("RPCPSF", nodeAddress);
+		return closestPrecedingStep(id);
+	}
+
+	private Message closestPrecedingStep(RoutingState state, long id, int fanout) {
+		InetSocketAddress successor = state.successor();
+		if (successor == null)
+			return Message.of("RPCPSF", nodeAddress);
+		if (Lookup.between(id, nodeID, Handler.hashSocketAddress(successor)))
+			return Message.of("RPCPSF", successor);
+
+		long findidRelative = Handler.computeRelativeId(id, nodeID);
+		Fingers table = state.fingers;
+		ArrayList<InetSocketAddress> closest = new ArrayList<InetSocketAddress>(fanout);
+		for (int i = table.precedingEntry(findidRelative, Fingers.highestCandidate(findidRelative));
+				i > 0 && closest.size() < fanout; i = table.precedingEntry(findidRelative, i - 1)) {
+			if (!closest.contains(table.get(i)))
+				closest.add(table.get(i));
+		}
+		if (closest.isEmpty())
+			closest.add(successor);
+		return Message.of("RPCPS", null, closest.toArray(new InetSocketAddress[0]));
+	}
+
+	/**
+	 * Look up the nodes responsible for a batch of IDs.
+	 * IDs owned by the successor are answered locally; the others are grouped by
+	 * their closest preceding finger and each group is forwarded to that finger as
+	 * one RQBFSC, all groups in parallel. IDs of a group that got no answer are
+	 * looked up one by one.
+	 * Args:
+	 *       ids: the IDs to look up
+	 *
+	 * Returns:
+	 *       the successor of each ID, in the order of the IDs
+	 */
+	public InetSocketAddress[] lookupBatch(long[] ids) {
+		InetSocketAddress[] owners = new InetSocketAddress[ids.length];
+		RoutingState state = routing.get();
+
+		// group the IDs by the finger they are forwarded to
+		LinkedHashMap<InetSocketAddress, ArrayList<Integer>> groups = new LinkedHashMap<InetSocketAddress, ArrayList<Integer>>();
+		for (int k = 0; k < ids.length; k++) {
+			Message step = closestPrecedingStep(state, ids[k], 1);
+			if (step.is("RPCPSF"))
+				owners[k] = step.address;
+			else
+				groups.computeIfAbsent(step.addresses[0], finger -> new ArrayList<Integer>()).add(k);
+		}
+
+		// forward every group as one sub-batch
+		ArrayList<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>(groups.size());
+		for (Map.Entry<InetSocketAddress, ArrayList<Integer>> group : groups.entrySet()) {
+			ArrayList<Integer> positions = group.getValue();
+			long[] subBatch = new long[positions.size()];
+			for (int j = 0; j < subBatch.length; j++)
+				subBatch[j] = ids[positions.get(j)];
+			pending.add(CompletableFuture.supplyAsync(() ->
+					CommunicationHandler.send(group.getKey(), Message.of("RQBFSC", subBatch)), Threads.executor())
+				.thenAccept(response -> {
+					if (response == null || !response.is("RPBFSC") || response.addresses == null
+							|| response.addresses.length != subBatch.length)
+						return;
+					for (int j = 0; j < subBatch.length; j++)
+						owners[positions.get(j)] = response.addresses[j];
+				}));
+		}
+		CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+
+		// look up whatever the forwarded batches left unresolved one at a time
+		ArrayList<CompletableFuture<Void>> retries = new ArrayList<CompletableFuture<Void>>();
+		for (int k = 0; k < ids.length; k++) {
+			if (owners[k] == null) {
+				int position = k;
+				retries.add(lookupAsync(ids[k]).thenAccept(owner -> owners[position] = owner));
+			}
+		}
+		CompletableFuture.allOf(retries.toArray(new CompletableFuture<?>[0])).join();
+		return owners;
+	}
+
 	/**
 	 * Request current node for provided ID predecessor
 	 * Args:
@@ -181,8 +465,8 @@ public class Node {
 		InetSocketAddress mostRecentlyAlive = this.nodeAddress;
 		long curNodeSuccessorRelativeId = 0;
 		if (curNodeSuccessor != null)
-			curNodeSuccessorRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(curNodeSuccessor), Handler.hashSocketAddress(curNode));
-		long findidRelativeId = Handler.computeRelativeId(findid, Handler.hashSocketAddress(curNode));
+			curNodeSuccessorRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(curNodeSuccessor), nodeID);
+		long findidRelativeId = Handler.computeRelativeId(findid, nodeID);
 
 		while (!(findidRelativeId > 0 && findidRelativeId <= curNodeSuccessorRelativeId)) {
 
@@ -196,12 +480,12 @@ public class Node {
 
 			// Otherwise fetch the nearest node of the requested node
 			else {
-				InetSocketAddress result = Handler.requestAddress(curNode, "RQIM_" + findid);
+				InetSocketAddress result = Handler.requestAddress(curNode, Message.of("RQIM", findid));
 
 				// Absence of response, fetch the nextNode current node 
 				if (result == null) {
 					curNode = mostRecentlyAlive;
-					curNodeSuccessor = Handler.requestAddress(curNode, "RQCSC");
+					curNodeSuccessor = Handler.requestAddress(curNode, Message.of("RQCSC"));
 					if (curNodeSuccessor==null) {
 						System.out.println("It's not possible.");
 						return nodeAddress;
@@ -218,20 +502,21 @@ public class Node {
 					// The recently active node is assigned as the current node
 					mostRecentlyAlive = curNode;		
 					// request the sucessor of the resultant node
-					curNodeSuccessor = Handler.requestAddress(result, "RQCSC");	
+					curNodeSuccessor = Handler.requestAddress(result, Message.of("RQCSC"));	
 					// On response, current node is the result node
 					if (curNodeSuccessor!=null) {
 						curNode = result;
 					}
 					// On no response/null response - we request the nextNode of the current node
 					else {
-						curNodeSuccessor = Handler.requestAddress(curNode, "RQCSC");
+						curNodeSuccessor = Handler.requestAddress(curNode, Message.of("RQCSC"));
 					}
 				}
 
 				// Variables needed for the loop structure
-				curNodeSuccessorRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(curNodeSuccessor), Handler.hashSocketAddress(curNode));
-				findidRelativeId = Handler.computeRelativeId(findid, Handler.hashSocketAddress(curNode));
+				long curNodeId = Handler.hashSocketAddress(curNode);
+				curNodeSuccessorRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(curNodeSuccessor), curNodeId);
+				findidRelativeId = Handler.computeRelativeId(findid, curNodeId);
 			}
 			if (tempCurNode.equals(curNode))
 				break;
@@ -249,34 +534,122 @@ public class Node {
 	 */
 	public InetSocketAddress closestFingerEntry(long findid) {
 		long findidRelative = Handler.computeRelativeId(findid, nodeID);
+		Fingers table = routing.get().fingers;
+
+		// check the finger tables from the nodes with the maximum hops/distance,
+		// skipping the entries that start past the requested ID
+		for (int i = table.precedingEntry(findidRelative, Fingers.highestCandidate(findidRelative)); i > 0;
+				i = table.precedingEntry(findidRelative, i - 1)) {
+			InetSocketAddress ithFinger = table.get(i);
+
+			// A finger heard from recently is trusted, otherwise check for life
+			if (Liveness.recentlySeen(ithFinger))
+				return ithFinger;
+			Message response  = CommunicationHandler.send(ithFinger, Message.of("RQALV", nodeAddress));
+
+			//If alive, return the same
+			if (response!=null &&  response.is("RPALV")) {
+				return ithFinger;
+			}
 
-		// check the finger tables from the nodes with the maximum hops/distance
-		for (int i = 32; i > 0; i--) {
-			InetSocketAddress ithFinger = fingerTable.get(i);
-			if (ithFinger == null) {
-				continue;
+			// Or remove from the finger table once it appears dead, skip it until then
+			else if (Liveness.dead(ithFinger)) {
+				updateFingers(-2, ithFinger);
 			}
-			long ithFingerId = Handler.hashSocketAddress(ithFinger);
-			long ithFingerRelativeId = Handler.computeRelativeId(ithFingerId, nodeID);
+		}
+		return nodeAddress;
+	}
 
-			// In case of relative id being nearest - check for life
-			if (ithFingerRelativeId > 0 && ithFingerRelativeId < findidRelative)  {
-				String response  = CommunicationHandler.sendRequest(ithFinger, "RQALV");
 
-				//If alive, return the same
-				if (response!=null &&  response.equals("RPALV")) {
-					return ithFinger;
+	/**
+	 * Refresh all fingers in one pass.
+	 * Fingers currently pointing at the same node most likely still share one
+	 * successor, so each run of them is looked up once through its lowest entry,
+	 * all runs concurrently. A result also settles every later finger whose start
+	 * it covers; the fingers left over are looked up in the next wave.
+	 */
+	public void refreshFingers() {
+		Fingers table = routing.get().fingers;
+		boolean[] pending = new boolean[Handler.M + 1];
+		Arrays.fill(pending, 2, Handler.M + 1, true);
+		// every wave settles at least one finger, so M waves always do; the cap only guards against a wave that does not
+		for (int wave = 0; wave < Handler.M; wave++) {
+			// the lowest pending finger of each run of equal entries
+			ArrayList<Integer> leaders = new ArrayList<Integer>();
+			for (int i = 2; i <= Handler.M; i++)
+				if (pending[i] && (!pending[i - 1] || !Objects.equals(table.get(i), table.get(i - 1))))
+					leaders.add(i);
+			if (leaders.isEmpty())
+				return;
+
+			ArrayList<CompletableFuture<InetSocketAddress>> lookups = new ArrayList<CompletableFuture<InetSocketAddress>>(leaders.size());
+			for (int i : leaders)
+				lookups.add(lookupAsync(table.start(i)));
+			for (int k = 0; k < leaders.size(); k++) {
+				int i = leaders.get(k);
+				InetSocketAddress owner;
+				try {
+					owner = lookups.get(k).join();
+				} catch (CompletionException e) {
+					owner = null;
 				}
 
-				// Or remove from the finger table
-				else {
-					updateFingers(-2, ithFinger);
+				// the owner is the successor of every start up to its ID (of all of them if it is this node)
+				long reach = owner == null ? -1 : Handler.computeRelativeId(Handler.hashSocketAddress(owner), nodeID);
+				if (owner != null && reach == 0)
+					reach = Long.MAX_VALUE;
+
+				// no answer, or an owner preceding the start (a stale cache entry, a node joining meanwhile):
+				// leave the whole run for the next round
+				if (owner == null || reach < Handler.computeRelativeId(table.start(i), nodeID)) {
+					for (int j = i; j <= Handler.M && pending[j] && Objects.equals(table.get(j), table.get(i)); j++)
+						pending[j] = false;
+					continue;
+				}
+				for (int j = i; j <= Handler.M && Handler.computeRelativeId(table.start(j), nodeID) <= reach; j++) {
+					if (pending[j]) {
+						updateIthFinger(j, owner);
+						pending[j] = false;
+					}
 				}
 			}
 		}
-		return nodeAddress;
 	}
 
+	/**
+	 * Fill the empty fingers with a guess from the successor's finger table:
+	 * finger i becomes the first node known from it at or after the finger's start.
+	 * Refreshing the fingers later corrects the guesses.
+	 * Args:
+	 *       successor: the successor found on joining
+	 */
+	private void seedFingers(InetSocketAddress successor) {
+		Message response = CommunicationHandler.send(successor, Message.of("RQFTB"));
+		if (response == null || !response.is("RPFTB") || response.addresses == null)
+			return;
+		ArrayList<InetSocketAddress> known = new ArrayList<InetSocketAddress>();
+		known.add(nodeAddress);
+		known.add(successor);
+		for (InetSocketAddress finger : response.addresses)
+			if (finger != null && !known.contains(finger))
+				known.add(finger);
+
+		Fingers table = routing.get().fingers;
+		for (int i = 2; i <= Handler.M; i++) {
+			if (table.get(i) != null)
+				continue;
+			InetSocketAddress closest = null;
+			long closestDistance = Long.MAX_VALUE;
+			for (InetSocketAddress candidate : known) {
+				long distance = Handler.computeRelativeId(Handler.hashSocketAddress(candidate), table.start(i));
+				if (distance < closestDistance) {
+					closest = candidate;
+					closestDistance = distance;
+				}
+			}
+			updateIthFinger(i, closest);
+		}
+	}
 
 	/**
 	 * Update the finger table based on parameters(for multiple threads simultaneaously)
@@ -287,16 +660,20 @@ public class Node {
 	 * Returns:
 	 *       returns nothing
 	 */
-	public synchronized void updateFingers(int i, InetSocketAddress value) {
-
+	public void updateFingers(int i, InetSocketAddress value) {
 		// Check for index validity
-		if (i > 0 && i <= 32) {
+		if (i > 0 && i <= Handler.M) {
 			updateIthFinger(i, value);
 		}
 
 		// deletion operation
 		else if (i == -1) {
-			deleteSuccessor();
+			repairLock.lock();
+			try {
+				deleteSuccessor();
+			} finally {
+				repairLock.unlock();
+			}
 		}
 
 		// deletion of specified entry in FT
@@ -307,7 +684,12 @@ public class Node {
 
 		// fill the nextNode values
 		else if (i == -3) {
-			fillSuccessor();
+			repairLock.lock();
+			try {
+				fillSuccessor();
+			} finally {
+				repairLock.unlock();
+			}
 		}
 
 	}
@@ -323,13 +705,28 @@ public class Node {
 	 *      returns nothing 
 	 */
 	private void updateIthFinger(int i, InetSocketAddress value) {
-		fingerTable.put(i, value);
+		InetSocketAddress previous = routing.getAndUpdate(state -> state.withFinger(i, value)).fingers.get(i);
+		// a new successor takes keys over from or hands them to the old one
+		if (i == 1 && !Objects.equals(previous, value)) {
+			locationCache.invalidate(previous);
+			locationCache.invalidate(value);
+			maintenance.hurry(this);
+		}
 		// if new is the local node - notify accordingly to the nextNode
 		if (i == 1 && value != null && !value.equals(nodeAddress)) {
 			notify(value);
 		}
 	}
 
+	/**
+	 * Replace the successor list with the one learnt from the successor
+	 * Args:
+	 *       list: the successors following the current successor, nearest first
+	 */
+	public void updateSuccessorList(InetSocketAddress[] list) {
+		routing.updateAndGet(state -> state.withSuccessors(list));
+	}
+
 	/**
 	 * Delete nextNode finger tables entries along with it
 	 */
@@ -339,11 +736,12 @@ public class Node {
 		//empty return
 		if (nextNode == null)
 			return;
+		InetSocketAddress[] backups = getRoutingState().successorList();
 
 		// find the last existence of nextNode in the finger table
-		int i = 32;
-		for (i = 32; i > 0; i--) {
-			InetSocketAddress ithFinger = fingerTable.get(i);
+		int i = Handler.M;
+		for (i = Handler.M; i > 0; i--) {
+			InetSocketAddress ithFinger = getRoutingState().fingers.get(i);
 			if (ithFinger != null && ithFinger.equals(nextNode))
 				break;
 		}
@@ -354,8 +752,18 @@ public class Node {
 		}
 
 		// if predecessor is nextNode, delete it
-		if (prevNode!= null && prevNode.equals(nextNode))
-			setPredecessor(null);
+		InetSocketAddress deleted = nextNode;
+		routing.updateAndGet(state -> deleted.equals(state.predecessor) ? state.withPredecessor(null) : state);
+
+		// the successor list already names the node after the failed one: take it over
+		// without any network walk, stabilization verifies it on its next round
+		routing.updateAndGet(state -> state.withoutFinger(deleted));
+		for (InetSocketAddress candidate : backups) {
+			if (!candidate.equals(deleted) && !candidate.equals(nodeAddress)) {
+				updateIthFinger(1, candidate);
+				return;
+			}
+		}
 
 		// try to fill nextNode
 		fillSuccessor();
@@ -364,11 +772,12 @@ public class Node {
 		// if nextNode is still null or local node, 
 		// and the predecessor is another node, keep asking 
 		// it's predecessor until find local node's new nextNode
-		if ((nextNode == null || nextNode.equals(nextNode)) && prevNode!=null && !prevNode.equals(nodeAddress)) {
+		InetSocketAddress prevNode = getPredecessor();
+		if ((nextNode == null || nextNode.equals(nodeAddress)) && prevNode!=null && !prevNode.equals(nodeAddress)) {
 			InetSocketAddress p = prevNode;
 			InetSocketAddress pPre = null;
 			while (true) {
-				pPre = Handler.requestAddress(p, "RQEPR");
+				pPre = Handler.requestAddress(p, Message.of("RQEPR"));
 				if (pPre == null)
 					break;
 
@@ -399,11 +808,8 @@ public class Node {
 	 *     returns nothing
 	 */
 	private void deleteCertainFinger(InetSocketAddress f) {
-		for (int i = 32; i > 0; i--) {
-			InetSocketAddress ithFinger = fingerTable.get(i);
-			if (ithFinger != null && ithFinger.equals(f))
-				fingerTable.put(i, null);
-		}
+		routing.updateAndGet(state -> state.withoutFinger(f));
+		locationCache.invalidate(f);
 	}
 
 	/**
@@ -412,8 +818,8 @@ public class Node {
 	private void fillSuccessor() {
 		InetSocketAddress nextNode = this.getSuccessor();
 		if (nextNode == null || nextNode.equals(nodeAddress)) {
-			for (int i = 2; i <= 32; i++) {
-				InetSocketAddress ithFinger = fingerTable.get(i);
+			for (int i = 2; i <= Handler.M; i++) {
+				InetSocketAddress ithFinger = getRoutingState().fingers.get(i);
 				if (ithFinger!=null && !ithFinger.equals(nodeAddress)) {
 					for (int j = i-1; j >=1; j--) {
 						updateIthFinger(j, ithFinger);
@@ -423,6 +829,7 @@ public class Node {
 			}
 		}
 		nextNode = getSuccessor();
+		InetSocketAddress prevNode = getPredecessor();
 		if ((nextNode == null || nextNode.equals(nodeAddress)) && prevNode!=null && !prevNode.equals(nodeAddress)) {
 			updateIthFinger(1, prevNode);
 		}
@@ -434,7 +841,11 @@ public class Node {
 	 * Set predecessor.to null
 	 */
 	public void clearPredecessor () {
+		InetSocketAddress prevNode = getPredecessor();
 		setPredecessor(null);
+		locationCache.invalidate(prevNode);
+		if (prevNode != null)
+			maintenance.hurry(this);
 	}
 
 	/**
@@ -445,8 +856,8 @@ public class Node {
 	 * Returns:
 	 *       returns nothing
 	 */
-	private synchronized void setPredecessor(InetSocketAddress pre) {
-		prevNode = pre;
+	private void setPredecessor(InetSocketAddress pre) {
+		routing.updateAndGet(state -> state.withPredecessor(pre));
 	}
 
 
@@ -463,9 +874,10 @@ public class Node {
 
 	public void displayNodeInformation(String currentIP) {
 		System.out.println("\n************ Current Node Information ***************");
-		Long nodeID = Handler.hashSocketAddress(nodeAddress);
 		System.out.println("Current Node Access point:\n\tIP Address: "+currentIP+"\n\tPort: "+nodeAddress.getPort()+"\n\tNode ID: "+nodeID);
-		InetSocketAddress nextNode = fingerTable.get(1);
+		RoutingState state = routing.get();
+		InetSocketAddress prevNode = state.predecessor;
+		InetSocketAddress nextNode = state.successor();
 		// update that the nextNode and predecessor as pointing to the current node in case of absence
 		System.out.println("\nNode Successor and Predecessor Information");
 		System.out.println("---------------------------------------------");
@@ -493,20 +905,28 @@ public class Node {
 			else {
 				System.out.println("Successor is in the process of joining/updating");
 			}
+			InetSocketAddress[] successors = state.successorList();
+			if (successors.length > 1) {
+				System.out.println("Successor list:");
+				for (InetSocketAddress s : successors)
+					System.out.println("\t"+s.getAddress().toString()+", port "+s.getPort()+", position "+Handler.hashSocketAddress(s)+".");
+			}
 		}
+		System.out.println("\nLocation cache: "+locationCache.size()+" ranges, "+locationCache.hits()+" hits, "
+				+locationCache.misses()+" misses, "+locationCache.staleHits()+" stale");
 	}
 
 	public void displayFingerTable() {
 		System.out.println("\n********************* Finger Table ***********************************************");
 		System.out.println("#\tNode Address (IP Address:Port)\tNodeID");
 		System.out.println("\n**********************************************************************************");
-		for (int i = 1; i <= 32; i++) {
-			long ithstart = Handler.ithStart(Handler.hashSocketAddress(nodeAddress),i);
-			InetSocketAddress fingerTableEntry = fingerTable.get(i);
+		Fingers table = routing.get().fingers;
+		for (int i = 1; i <= Handler.M; i++) {
+			InetSocketAddress fingerTableEntry = table.get(i);
 			StringBuilder sb = new StringBuilder();
 			sb.append(i+"\t"+ "\t");
 			if (fingerTableEntry!= null)
-				sb.append(fingerTableEntry.toString()+"\t"+Handler.hashSocketAddress(fingerTableEntry));
+				sb.append(fingerTableEntry.toString()+"\t"+table.id(i));
 			else 
 				sb.append("NULL");
 			System.out.println(sb.toString());
@@ -526,28 +946,86 @@ public class Node {
 		InetSocketAddress nextNode = this.getSuccessor();
 		if(nextNode != null)
 			this.handFilesOver(nextNode);
-		if (listenerObj != null)
-			listenerObj.kill();
-		if (fingerTableObj != null)
-			fingerTableObj.kill();
-		if (stabilizeObj != null)
-			stabilizeObj.kill();
-		if (heartBeatObj != null)
-			heartBeatObj.kill();
+		// nothing may use the stores once they are closed: no requests, rounds or transfers
+		listenerObj.remove(this);
+		maintenance.stop(this);
+		awaitTransfers();
+		if (Snapshot.ENABLED)
+			saveSnapshot();
+		for(KeyValueStore each : new KeyValueStore[] { store, replicaStore })
+		{
+			try
+			{
+				each.close();
+			}
+			catch(IOException e)
+			{
+				System.out.println("Cannot close the file store: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Run a transfer off the calling thread; the node waits for it before closing its stores
+	 * Args:
+	 *      transfer: the transfer
+	 *
+	 * Returns:
+	 *      false if the node is terminating and the transfer was not started
+	 */
+	boolean inBackground(Runnable transfer) {
+		synchronized (transfers)
+		{
+			if (stopping)
+				return false;
+			CompletableFuture<Void> done = CompletableFuture.runAsync(transfer, Threads.executor()).exceptionally(e -> null);
+			transfers.add(done);
+			done.whenComplete((v, e) -> {
+				synchronized (transfers)
+				{
+					transfers.remove(done);
+				}
+			});
+			return true;
+		}
+	}
+
+	/* Start no more background transfers and wait for those running */
+	private void awaitTransfers() {
+		List<CompletableFuture<Void>> running;
+		synchronized (transfers)
+		{
+			stopping = true;
+			running = new ArrayList<CompletableFuture<Void>>(transfers);
+		}
+		for (CompletableFuture<Void> done : running)
+			done.join();
 	}
 
 	/* ******************************** Node File System ************************************** */
-	private void nodeFileSystemUpdate()
+	private void nodeFileSystemUpdate(Snapshot snapshot)
 	{	
 		try{
-			File fileFolder = new File("Files");
-			File[] filesList = fileFolder.listFiles();
-			String filename = null;
-			filesTable = new HashMap<Long, String>();
-			for(int i=0;i<filesList.length;i++)
+			store = KeyValueStore.open(fileFolder);
+			new File(replicaFolder).mkdirs();
+			replicaStore = KeyValueStore.open(replicaFolder);
+			for(Map.Entry<Long, String> file : replicaStore.entries())
+				replicaTable.put(file.getKey(), file.getValue());
+			hotKeys = new HotKeys(this, new File(fileFolder, ".cache"));
+			filesTable.clear();
+			// the saved index stands for the store as long as no key was added or removed since;
+			// its entries are checked against the store as they are asked for
+			long stamp = store.stamp();
+			if(snapshot != null && stamp != 0 && snapshot.storeStamp == stamp && snapshot.restoreIndex(filesTable))
+			{
+				for(Map.Entry<Long, String> file : filesTable.entries())
+					unverifiedFiles.add(file.getKey());
+				return;
+			}
+			filesTable.clear();
+			for(Map.Entry<Long, String> file : store.entries())
 			{
-				filename = filesList[i].getName();
-				filesTable.put(Handler.hashString(filename), filename);
+				filesTable.put(file.getKey(), file.getValue());
 			}
 		}
 		catch(Exception e)
@@ -558,24 +1036,136 @@ public class Node {
 	}
 	public boolean nodeHasFile(long filehash)
 	{
-		if(this.filesTable.containsKey(filehash))
-		{
+		if((verifyFile(filehash) && this.filesTable.contains(filehash)) || this.replicaTable.contains(filehash))
 			return true;
+		return HotKeys.ENABLED && hotKeys.contains(filehash);
+	}
+
+	/*
+	 * Count a client's file search passing this node (RQFSF, RQCPF) for a key it does not hold, to cache the file
+	 * if the key turns hot; a cached copy keeps counting, so the key is fetched again on expiry while it stays hot
+	 */
+	public void recordAccess(long id)
+	{
+		if(HotKeys.ENABLED && !filesTable.contains(id) && !replicaTable.contains(id))
+			hotKeys.record(id);
+	}
+
+	/* Whether the node can serve the file only from its cache of hot files */
+	private boolean hasCachedCopy(long id)
+	{
+		return HotKeys.ENABLED && !filesTable.contains(id) && !replicaTable.contains(id) && hotKeys.contains(id);
+	}
+
+	/* ******************************** Replication ************************************** */
+
+	/* Bring the copies on the given successors up to the file index; successors no longer among them are forgotten */
+	public void replicate(InetSocketAddress[] targets)
+	{
+		long changes = filesTable.changes();
+		for(InetSocketAddress target : targets)
+		{
+			Long synced = replicaSynced.get(target);
+			if(synced != null && synced == changes)
+				continue;
+			Map<Long, Long> held = replicaHeld.computeIfAbsent(target, t -> new ConcurrentHashMap<Long, Long>());
+			if(FileTransfer.replicate(target, store, filesTable, held))
+				replicaSynced.put(target, changes);
 		}
+		replicaSynced.keySet().retainAll(Arrays.asList(targets));
+		replicaHeld.keySet().retainAll(Arrays.asList(targets));
+	}
+
+	/* Make the copies of keys this node owns now, in (predecessor, own ID], its own files */
+	public void promoteReplicas()
+	{
+		InetSocketAddress predecessor = getPredecessor();
+		if(predecessor == null || replicaTable.size() == 0)
+			return;
+		FileTransfer.move(fileFolder, replicaStore, replicaTable, store, filesTable,
+				replicaTable.range(Handler.hashSocketAddress(predecessor), nodeID));
+	}
+
+	/* RQRSYN: the IDs of a batch of ID and CRC32 pairs this node holds neither as its own file nor as a copy of that content */
+	public Message missingReplicas(long[] pairs)
+	{
+		ArrayList<Long> missing = new ArrayList<Long>();
+		for(int i = 0; i + 1 < pairs.length; i += 2)
+		{
+			long id = pairs[i];
+			if(filesTable.contains(id))
+				continue;
+			String name = replicaTable.get(id);
+			if(name == null || FileTransfer.checksum(replicaStore, replicaTable, id, name) != pairs[i + 1])
+				missing.add(id);
+		}
+		long[] missingIds = new long[missing.size()];
+		for(int i = 0; i < missingIds.length; i++)
+			missingIds[i] = missing.get(i);
+		return Message.of("RPRSYN", missingIds);
+	}
+
+	/* RQREPL: this node and the successors holding a copy of the file's current content, to read it from any of them */
+	public Message replicaHolders(long id)
+	{
+		ArrayList<InetSocketAddress> holders = new ArrayList<InetSocketAddress>();
+		holders.add(nodeAddress);
+		String name = filesTable.get(id);
+		long crc = name == null ? -1 : FileTransfer.checksum(store, filesTable, id, name);
+		if(crc >= 0)
+			for(Map.Entry<InetSocketAddress, Map<Long, Long>> target : replicaHeld.entrySet())
+				if(Long.valueOf(crc).equals(target.getValue().get(id)))
+					holders.add(target.getKey());
+		return Message.of("RPREPL", null, holders.toArray(new InetSocketAddress[0]));
+	}
+
+	/* Confirm a file restored from the snapshot with the store, dropping it from the index if it is gone */
+	private boolean verifyFile(long filehash)
+	{
+		if(unverifiedFiles.isEmpty() || !unverifiedFiles.remove(filehash))
+			return true;
+		String filename = this.filesTable.get(filehash);
+		if(filename == null || store.contains(filehash, filename))
+			return true;
+		this.filesTable.remove(filehash, filename);
 		return false;
 	}
 
+	/* Write the snapshot if the routing state or the file index changed since the last one */
+	private void saveSnapshot()
+	{
+		RoutingState state = routing.get();
+		long changes = filesTable.changes();
+		if(state.version == savedVersion && changes == savedChanges)
+			return;
+		try
+		{
+			// the stamp is taken before the index: a key stored while the index is written moves the store past it
+			Snapshot.write(snapshotFile, nodeID, state, filesTable, store.stamp());
+			savedVersion = state.version;
+			savedChanges = changes;
+		}
+		catch(IOException e)
+		{
+			System.out.println("Cannot write the snapshot: "+e.getMessage());
+		}
+	}
+
 	public void fileExchange()
 	{
 		InetSocketAddress nextNode = this.find_nextNode(nodeID);
-		String request = "RQFILE_"+nodeID;
-		String response = CommunicationHandler.sendRequest(nextNode, request);
-		String[] splitResponse = response.split("_");
-		if(splitResponse[1].equals("NOFILE"))
+		if(nextNode == null || nextNode.equals(nodeAddress))
 			return;
-		for(int i=1; i<splitResponse.length;i++)
+		// naming this node asks the successor to stream the files with their contents (RPFSTR);
+		// a successor that does not stream sends the names of the files to create instead
+		Message request = Message.of("RQFILE", nodeID);
+		request.address = nodeAddress;
+		Message response = CommunicationHandler.send(nextNode, request);
+		if(response == null || response.is("RPFSTR") || response.names == null || response.names.length == 0 || response.names[0].equals("NOFILE"))
+			return;
+		for(String filename : response.names)
 		{
-			this.updateFileSystem(splitResponse[i]);
+			this.updateFileSystem(filename);
 		}
 	}
 
@@ -584,9 +1174,9 @@ public class Node {
 		long fileHash;
 		try
 		{
-			File newFile = new File("Files/"+response);
-			boolean nFile = newFile.createNewFile();
 			fileHash = Handler.hashString(response);
+			if(!this.filesTable.contains(fileHash))
+				store.put(fileHash, response, new byte[0]);
 			this.filesTable.put(fileHash, response);
 		}
 		catch(Exception e)
@@ -596,89 +1186,103 @@ public class Node {
 
 	}
 
-	public String fetchFiles(long id)
+	/**
+	 * Give up the files a joining predecessor now owns
+	 * Args:
+	 *       id: ID of the joining node
+	 *
+	 * Returns:
+	 *       RETFILE with the names of the files in (own ID, id], which are deleted here,
+	 *       or RETFILE_NOFILE
+	 */
+	public Message fetchFiles(long id)
 	{
-		String filename = null;
-		String response = "RETFILE";
-		ArrayList<Long> removeList = new ArrayList<Long>();
-		long currentNodeId = this.getId();
-
-		for(long fileId: this.filesTable.keySet())
+		ArrayList<String> sent = new ArrayList<String>();
+		// the keys not in (id, own ID] are the ones past the joining node, wrapping around the ring
+		for(Map.Entry<Long, String> file : this.filesTable.range(this.getId(), id))
 		{
-			if(fileId <= id && (fileId > currentNodeId || currentNodeId > id))
+			String filename = file.getValue();
+			try
 			{
-				filename = this.filesTable.get(fileId);
-				try
-				{
-					File sendFile = new File("Files/"+filename);
-					if(sendFile.exists())
-					{
-						response += "_"+filename;
-						removeList.add(fileId);
-						sendFile.delete();
-					}	
-
-				}
-				catch(Exception e)
-				{
-					System.out.println("No File Found");
-				}
+				store.remove(file.getKey(), filename);
+				this.filesTable.remove(file.getKey(), filename);
+				sent.add(filename);
 			}
-		}
-		if(response.equals("RETFILE"))
-		{
-			return response + "_NOFILE";
-		}
-		else if(!removeList.isEmpty()) {
-			for(Long element:removeList)
+			catch(Exception e)
 			{
-				this.filesTable.remove(element);
+				System.out.println("No File Found");
 			}
 		}
-		return response;
+		if(sent.isEmpty())
+			return Message.of("RETFILE", new String[] { "NOFILE" });
+		return Message.of("RETFILE", sent.toArray(new String[0]));
+	}
+
+	/**
+	 * Stream the files a joining predecessor now owns to it, in the background
+	 * Args:
+	 *       id: ID of the joining node
+	 *       joiningNode: its address
+	 *
+	 * Returns:
+	 *       RPFSTR, telling the node the files are on their way
+	 */
+	public Message streamFiles(long id, InetSocketAddress joiningNode)
+	{
+		// a node cannot take files over from itself, e.g. when restarted while the ring still listed it
+		if(joiningNode.equals(nodeAddress))
+			return Message.of("RPFSTR");
+		inBackground(() -> FileTransfer.send(joiningNode, store, filesTable, filesTable.range(this.getId(), id)));
+		return Message.of("RPFSTR");
 	}
 
+	/* Stream every file to the successor before leaving; files it did not acknowledge stay here */
 	public boolean handFilesOver(InetSocketAddress nextNode)
 	{
-		String request = "RQFTX";
-		ArrayList<Long> removeList = new ArrayList<Long>();
-		for(long fileId: this.filesTable.keySet())
-		{
-			request += "_"+this.filesTable.get(fileId);
-			removeList.add(fileId);
-		}
-		String response = CommunicationHandler.sendRequest(nextNode, request);
+		return FileTransfer.send(nextNode, store, filesTable, filesTable.entries());
+	}
 
-		if(response.equals("RPFTXCMP"))
+	/* A range of a file held here, for RQGETF */
+	public Message getFile(Message request)
+	{
+		verifyFile(request.id);
+		if(!filesTable.contains(request.id) && replicaTable.contains(request.id))
+			return FileTransfer.get(replicaStore, replicaTable, request);
+		if(!filesTable.contains(request.id) && HotKeys.ENABLED && hotKeys.contains(request.id))
 		{
-			if(!removeList.isEmpty()){
-				for(long hashId:removeList)
-				{
-					File delFile = new File("Files/"+this.filesTable.get(hashId));
-					try{
-						delFile.delete();
-						this.filesTable.remove(hashId);
-					}	
-					catch(Exception e)
-					{
-						System.out.println("No File Found");
-					}
-				}
-			}
-			return true;
+			Message cached = hotKeys.get(request);
+			if(cached != null)
+				return cached;
 		}
-		return false;
+		return FileTransfer.get(store, filesTable, request);
 	}
+
+	/* One step of a file streamed to this node: RQXBEG, RQXPUT, RQXEND or, for a copy staged apart, RQRBEG, RQRPUT, RQXREP */
+	public Message receiveFile(Message request)
+	{
+		if(request.is("RQXBEG"))
+			return FileTransfer.begin(fileFolder, request);
+		if(request.is("RQXPUT"))
+			return FileTransfer.put(fileFolder, request);
+		if(request.is("RQRBEG"))
+			return FileTransfer.begin(replicaFolder, request);
+		if(request.is("RQRPUT"))
+			return FileTransfer.put(replicaFolder, request);
+		if(request.is("RQXREP"))
+			return FileTransfer.end(replicaFolder, replicaStore, replicaTable, request);
+		return FileTransfer.end(fileFolder, store, filesTable, request);
+	}
+
 	public boolean updateFileTable(String filename)
 	{
 		try
 		{
-			File movFile = new File("Files/"+filename);
 			long fileHash = Handler.hashString(filename);
+			if(this.filesTable.contains(fileHash))
+				return false;
+			store.put(fileHash, filename, new byte[0]);
 			this.filesTable.put(fileHash, filename);
-			if(movFile.createNewFile())
-				return true;
-			return false;
+			return true;
 		}
 		catch(Exception e)
 		{
@@ -1,5 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Set;
 
 /**
  * Receiver thread that processes request accepted by listener and writes
@@ -11,6 +16,10 @@ import java.net.*;
  */
 
 public class Receiver implements Runnable{
+	/* Requests whose handling waits on other nodes (lookups, liveness probes of fingers) */
+	static final Set<String> CALLS_OUT = Set.of("RQFSC", "RQFSF", "RQBFSC", "RQIM");
+	/* Connections left idle for this long are closed (kept above ConnectionPool's idle eviction) */
+	static final int IDLE_TIMEOUT = Integer.getInteger("chord.receiver.idleMillis", 60000);
 	Socket receiverSocket;
 	private Node currentNode;
 	// Constructor
@@ -19,65 +28,111 @@ public class Receiver implements Runnable{
 		this.receiverSocket = receiverSocket;
 		this.currentNode = currentNode;
 	}
+	// Constructor for dispatching requests read by the Listener's selector
+	public Receiver(Node currentNode)
+	{
+		this(null, currentNode);
+	}
 
-	//Thread runnable
+	//Thread runnable - serves requests on the connection until the peer closes it
 	public void run()
 	{
-		InputStream iStream = null;
-		OutputStream oStream = null;
 		try 
 		{
-			iStream = receiverSocket.getInputStream();
-			String request = CommunicationHandler.parseIOStream(iStream);
-			String response = handleRequest(request);
-			if (response != null) 
+			receiverSocket.setSoTimeout(IDLE_TIMEOUT);
+			DataInputStream input = new DataInputStream(new BufferedInputStream(receiverSocket.getInputStream()));
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(receiverSocket.getOutputStream()));
+			receiverSocket.setTcpNoDelay(true);
+			ByteBuffer request = null;
+			ByteBuffer response = null;
+			while ((request = CommunicationHandler.readFrame(input, request)) != null) 
 			{
-				oStream = receiverSocket.getOutputStream();
-				oStream.write(response.getBytes());
+				// answer in the format of the request; a null response goes out as an empty frame
+				boolean binary = WireCodec.isBinary(request);
+				Message reply = handleRequest(WireCodec.decode(request));
+				response = CommunicationHandler.writeFrame(output, reply, binary, response);
+				if (reply != null && reply.file != null)
+					sendContent(reply, output);
 			}
-			iStream.close();
 		} 
+		catch (SocketTimeoutException e) 
+		{
+			// idle connection, the sender reconnects when needed
+		}
 		catch (Exception e) 
 		{
 			System.out.println("Communication from Node at "+this.currentNode.getAddress()+":"+this.currentNode.getAddress().getPort()+" to Receiver at "+this.receiverSocket.getPort()+" was not possible. ");
 		}
+		finally 
+		{
+			try 
+			{
+				receiverSocket.close();
+			} 
+			catch (IOException e) 
+			{
+				// already closed
+			}
+		}
+	}
+
+	/* Send the file content attached to a response after its frame, from disk to socket */
+	private void sendContent(Message reply, OutputStream output) throws IOException
+	{
+		try
+		{
+			WritableByteChannel target = receiverSocket.getChannel() != null ? receiverSocket.getChannel() : Channels.newChannel(output);
+			long sent = 0;
+			while (sent < reply.count)
+			{
+				long n = reply.file.transferTo(reply.filePosition + sent, reply.count - sent, target);
+				if (n <= 0)
+					throw new IOException("File shrank while being sent");
+				sent += n;
+			}
+		}
+		finally
+		{
+			FileTransfer.close(reply.file);
+		}
 	}
 
 	/* Method to handle requests 
-		Args: String request
-		Return: String response 
+		Args: Message request
+		Return: Message response 
 	*/
-	private String handleRequest(String request)
+	Message handleRequest(Message request)
 	{
 		InetSocketAddress resNodeAddr = null;
-		String retMsg = null;
-		String nodeIP = null;
-		int nodePort = 0;
-		long hashId = 0;
+		Message retMsg = null;
 		if (request  == null) {
 			return null;
 		}
-		String[] reqString = request.split("_");
-		String rqCode = reqString[0];
 		/*
-			Message format - Message is separated by _, and the first string will denote the request / response code
+			Message format - The first field denotes the request / response code, the remaining
+			fields depend on the code (see WireCodec). In the text format fields are separated by _
 			Eg. RQFILE_hashId - RQFILE code denotes a request for file transfer by a new node from its successor
 				Response: RETFILE_file1_file2_file3 or RETFILE_NOFILE
 				In each of the following cases, the Request and response codes are described
 		*/
-		switch(rqCode)
+		switch(request.code)
 		{
+			/* RQCODEC
+				- Offer of the binary message format by a connecting node
+				- Response Message
+					- RPCODEC - the remaining messages of the connection may be binary
+			*/
+			case "RQCODEC":
+						retMsg = Message.of("RPCODEC");
+						break;
 			/* RQIM_hashId
 				- Request for the immediate preceding finger table entry and return the nodeIp and address
 				- Response Message: 
 					- RPIM_nodeIP:nodePort
 			*/
 			case "RQIM":
-						hashId = Long.parseLong(request.split("_")[1]);
-						resNodeAddr = currentNode.closestFingerEntry(hashId);
-						nodeIP = resNodeAddr.getAddress().toString();
-						nodePort = resNodeAddr.getPort();
-						retMsg = "RPIM_"+nodeIP+":"+nodePort;
+						resNodeAddr = currentNode.closestFingerEntry(request.id);
+						retMsg = Message.of("RPIM", resNodeAddr);
 						break;
 			/* RQCSC
 				- Request a node for the IP and Port number of its successor node
@@ -87,15 +142,9 @@ public class Receiver implements Runnable{
 			case "RQCSC":
 						resNodeAddr =currentNode.getSuccessor();
 						if (resNodeAddr != null) 
-						{
-							nodeIP = resNodeAddr.getAddress().toString();
-							nodePort = resNodeAddr.getPort();
-							retMsg = "RPCSC_"+nodeIP+":"+nodePort;
-						}
+							retMsg = Message.of("RPCSC", resNodeAddr);
 						else 
-						{
-							retMsg = "NRP";
-						}
+							retMsg = Message.of("NRP");
 						break;
 			/* RQEPR
 				- Request a node for the IP and Port number of its predecessor node
@@ -105,15 +154,28 @@ public class Receiver implements Runnable{
 			case "RQEPR":
 						resNodeAddr =currentNode.getPredecessor();
 						if (resNodeAddr != null) 
-						{
-							nodeIP = resNodeAddr.getAddress().toString();
-							nodePort = resNodeAddr.getPort();
-							retMsg = "RPEPR_"+nodeIP+":"+nodePort;
-						}
+							retMsg = Message.of("RPEPR", resNodeAddr);
 						else 
-						{
-							retMsg = "NRP";
-						}
+							retMsg = Message.of("NRP");
+						break;
+			/* RQSTB_senderIP:senderPort
+				- Request a node for its predecessor and successor list (stabilization)
+				- Response Message
+					- RPSTB_predecessorIP:port_successor1IP:port_..._successorRIP:port
+					  (predecessor is - when unknown)
+			*/
+			case "RQSTB":
+						Liveness.seen(request.address);
+						RoutingState state = currentNode.getRoutingState();
+						retMsg = Message.of("RPSTB", state.predecessor, state.successorList());
+						break;
+			/* RQFTB
+				- Request a node for its finger table, to seed the table of a joining node
+				- Response Message
+					- RPFTB_finger1IP:finger1Port_..._fingerMIP:fingerMPort (- for an empty entry)
+			*/
+			case "RQFTB":
+						retMsg = Message.of("RPFTB", null, currentNode.getRoutingState().fingers.entries());
 						break;
 			/* RQFSC_hashId
 				- Find successor of a node using its hash ID
@@ -121,20 +183,92 @@ public class Receiver implements Runnable{
 					- RPFSC_nodeIP:nodePort
 			*/
 			case "RQFSC":
-						hashId = Long.parseLong(request.split("_")[1]);
-						resNodeAddr = currentNode.find_nextNode(hashId);
-						nodeIP = resNodeAddr.getAddress().toString();
-						nodePort = resNodeAddr.getPort();
-						retMsg = "RPFSC_"+nodeIP+":"+nodePort;
+						resNodeAddr = currentNode.lookupAsync(request.id).join();
+						retMsg = Message.of("RPFSC", resNodeAddr);
 						break;  
-			/* RQFILE_hashId
-				- Request files with hashId <= requested hashId
+			/* RQFSF_hashId
+				- Find the successor of a file's hash ID for a client's file search, counted by every node
+				  the search passes toward the file turning hot (the hops are RQCPF)
 				- Response Message
-					- RETFILE_filename1_filename2..._filenameN
+					- RPFSC_nodeIP:nodePort (the owner, or the first node on the way with a cached copy of the file)
+			*/
+			case "RQFSF":
+						currentNode.recordAccess(request.id);
+						resNodeAddr = currentNode.lookupAsync(request.id, true).join();
+						retMsg = Message.of("RPFSC", resNodeAddr);
+						break;
+			/* RQBFSC_hashId1_hashId2..._hashIdN
+				- Find the successors of a batch of hash IDs
+				- Response Message
+					- RPBFSC_node1IP:node1Port_..._nodeNIP:nodeNPort (in the order of the IDs)
+			*/
+			case "RQBFSC":
+						retMsg = Message.of("RPBFSC", null,
+								currentNode.lookupBatch(request.ids == null ? new long[0] : request.ids));
+						break;
+			/* RQCPS_hashId
+				- One hop of an iterative lookup, answered from the local routing state
+				- Response Message
+					- RPCPSF_nodeIP:nodePort (successor owns the ID)
+					- RPCPS_-_finger1IP:finger1Port_... (closest preceding fingers)
+			*/
+			case "RQCPS":
+						retMsg = currentNode.closestPrecedingStep(request.id);
+						break;
+			/* RQCPF_hashId
+				- One hop of a client's file search, as RQCPS but counted toward the file turning hot
+				- Response Message
+					- RPCPSF_nodeIP:nodePort (successor owns the ID, or this node holds a cached copy of the file)
+					- RPCPS_-_finger1IP:finger1Port_... (closest preceding fingers)
+			*/
+			case "RQCPF":
+						retMsg = currentNode.fileSearchStep(request.id);
+						break;
+			/* RQFILE_hashId[_nodeIP:nodePort]
+				- Request the files a joining node with hashId takes over: those in (responder's ID, hashId]
+				- Response Message
+					- RPFSTR - if the node named itself: the files are streamed to it with their contents
+					- RETFILE_filename1_filename2..._filenameN - otherwise, the files being removed here
 			*/
 			case "RQFILE":
-						hashId = Long.parseLong(request.split("_")[1]);
-						retMsg = currentNode.fetchFiles(hashId);
+						if (request.address != null)
+							retMsg = currentNode.streamFiles(request.id, request.address);
+						else
+							retMsg = currentNode.fetchFiles(request.id);
+						break;
+			/* RQXBEG_hashId_length_name_crc32, RQXPUT_hashId_offset_bytes_crc32, RQXEND_hashId_length_name_crc32
+				- Receive a file streamed by a joining node's successor or a leaving predecessor (Base64 name and bytes in text);
+				  a copy sent by a predecessor goes the same way with RQRBEG, RQRPUT and RQXREP instead,
+				  staged and kept with the replicas
+				- Response Message
+					- RPXBEG_bytesHeld - the offset to send from
+					- RPXACK_bytesHeld - after a chunk, or when the offset sent does not continue the bytes held
+					- RPXEND - the file is in place and indexed
+			*/
+			case "RQXBEG":
+			case "RQXPUT":
+			case "RQXEND":
+			case "RQRBEG":
+			case "RQRPUT":
+			case "RQXREP":
+						retMsg = currentNode.receiveFile(request);
+						break;
+			/* RQRSYN_hashId1_crc32_hashId2_crc32..._hashIdN_crc32
+				- Request a successor which of a batch of the sender's files it lacks a copy of, or holds
+				  a copy of other content for (replication)
+				- Response Message
+					- RPRSYN_hashIdA_hashIdB... (the hashIds to copy, each streamed with RQRBEG, RQRPUT and RQXREP)
+			*/
+			case "RQRSYN":
+						retMsg = currentNode.missingReplicas(request.ids == null ? new long[0] : request.ids);
+						break;
+			/* RQREPL_hashId
+				- Request the owner of a file for the nodes a copy of its current content can be read from
+				- Response Message
+					- RPREPL_ownerIP:ownerPort_replica1IP:replica1Port_... (the owner first)
+			*/
+			case "RQREPL":
+						retMsg = currentNode.replicaHolders(request.id);
 						break;
 			/* RQFTX_filename1_filename2_.._filenameN
 				- Request for transfer of files from a departing node to its successor
@@ -142,44 +276,68 @@ public class Receiver implements Runnable{
 					- RPFTXCMP
 			*/
 			case "RQFTX":
-						for(int i=1; i<reqString.length;i++)
-						{
-							currentNode.updateFileTable(reqString[i]);
-						}
-						retMsg = "RPFTXCMP";
+						if (request.names != null)
+							for (String filename : request.names)
+								currentNode.updateFileTable(filename);
+						retMsg = Message.of("RPFTXCMP");
 						break;
 			/* RQCHF_hashId
 				- Request a node if a file with hashId exists in it
 				- Response Message
-					- RPEXISTS - if file exists in the current node
+					- RPEXISTS - if file exists in the current node (its own, a copy kept for a predecessor or a cached copy of a hot file)
 					- RONFL - if no such file exists in the current node
 			*/
 			case "RQCHF":
-						hashId = Long.parseLong(reqString[1]) ;
-						if(currentNode.nodeHasFile(hashId))
-							retMsg = "RPEXISTS";
+						if(currentNode.nodeHasFile(request.id))
+							retMsg = Message.of("RPEXISTS");
 						else
-							retMsg = "RPNFL";
+							retMsg = Message.of("RPNFL");
 				break;
+			/* RQGETF_hashId_offset_count
+				- Request up to count bytes of a file from offset, to download it
+				- Response Message
+					- RPGETF_offset_count_crc32 followed by the count bytes of the range (count < requested at the end of the file)
+					- RPNFL - if no such file exists in the current node
+			*/
+			case "RQGETF":
+						retMsg = currentNode.getFile(request);
+						break;
+			/* RQBCHF_hashId1_hashId2..._hashIdN
+				- Request a node which of a batch of file hashIds it holds
+				- Response Message
+					- RPBCHF_hashIdA_hashIdB... (the hashIds of the files that exist in the current node)
+			*/
+			case "RQBCHF":
+						ArrayList<Long> held = new ArrayList<Long>();
+						if (request.ids != null)
+							for (long id : request.ids)
+								if (currentNode.nodeHasFile(id))
+									held.add(id);
+						long[] heldIds = new long[held.size()];
+						for (int i = 0; i < heldIds.length; i++)
+							heldIds[i] = held.get(i);
+						retMsg = Message.of("RPBCHF", heldIds);
+						break;
 			/* RQPNGPRE_InetSocketAddress
 				- Ping a node to notify that the pinging node is now its predecessor
 				- Response Message
 					- RPPNGD
 			*/
 			case "RQPNGPRE":
-						InetSocketAddress updPredecessor = Handler.buildSocketAddress(request.split("_")[1]);
-						currentNode.notified(updPredecessor);
-						retMsg = "RPPNGD";
+						Liveness.seen(request.address);
+						currentNode.notified(request.address);
+						retMsg = Message.of("RPPNGD");
 						break;
-			/* RQALV
-				- Request the status of a node (Heart Beat Monitoring)
+			/* RQALV_senderIP:senderPort
+				- Request the status of a node (Heart Beat Monitoring), the sender is - for clients
 				- Response Message
 					- RPALV
 			*/
 			case "RQALV":
-						retMsg = "RPALV";
+						Liveness.seen(request.address);
+						retMsg = Message.of("RPALV");
 				break;
 		}
 		return retMsg;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/**
+ * Replication round, run periodically, that keeps a copy of every file held by
+ * the node on its next REPLICAS-1 successors and repairs the copies when the
+ * ring changes: successors that newly entered the list, or whose copies fell
+ * behind the node's file index, are sent the files they lack or hold an
+ * outdated copy of, by CRC32 (RQRSYN, then RQRBEG/RQRPUT/RQXREP per file). Copies a node holds of keys it now owns,
+ * because their owner failed or left, are promoted to its own files first.
+ * chord.replicas sets the replication factor r; 1, the default, keeps every
+ * key on its owner only.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ */
+
+public class Replication implements Runnable {
+
+	/* Replication factor r: the owner and r-1 successors hold each key */
+	public static final int REPLICAS = Math.max(1, Math.min(RoutingState.SUCCESSORS + 1, Integer.getInteger("chord.replicas", 1)));
+	/* Period while the ring changes, and the most it backs off to while it is stable */
+	static final int MIN_PERIOD = Integer.getInteger("chord.replicate.minMillis", 500);
+	static final int MAX_PERIOD = Integer.getInteger("chord.replicate.maxMillis", 10000);
+
+	private Node currentNode;
+
+	public Replication(Node currentNode) {
+		this.currentNode = currentNode;
+	}
+
+	@Override
+	public void run() {
+		currentNode.promoteReplicas();
+		currentNode.replicate(targets(currentNode.getRoutingState(), currentNode.getAddress()));
+	}
+
+	/* The first REPLICAS-1 nodes of the successor list other than the node itself */
+	static InetSocketAddress[] targets(RoutingState state, InetSocketAddress self) {
+		ArrayList<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		for (InetSocketAddress successor : state.successorList()) {
+			if (targets.size() >= REPLICAS - 1)
+				break;
+			if (!successor.equals(self) && !targets.contains(successor))
+				targets.add(successor);
+		}
+		return targets.toArray(new InetSocketAddress[0]);
+	}
+}
@@ -1,12 +1,18 @@
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Scanner;
 
 /**
  * Ring class with two options:
  *         1. Create a new chord ring
  *         2. Joining an existing ring
+ * Optional switches may precede the arguments:
+ *         --virtual-threads : run receivers and maintenance on virtual threads (Java 21+)
+ *         --vnodes k        : host k virtual nodes, on the given port and the k-1 ports after it,
+ *                             sharing one listener and maintenance executor
  * @author Anusha Naik
  * @author Srivatsa Udupa
  * @author Prarthana Raghavan
@@ -16,11 +22,36 @@ import java.util.Scanner;
 public class Ring {
 	
 	private static Node currentNodeObj;
+	private static Node[] virtualNodes;
 	private static InetSocketAddress requestingNode;
 	private static Handler handler;
 
 	public static void main (String[] args) {
 		
+		// Separate the startup switches from the positional arguments
+		ArrayList<String> positional = new ArrayList<String>();
+		int vnodes = 1;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--virtual-threads")) {
+				if (!Threads.enableVirtual())
+					System.out.println("Virtual threads are not supported by this JVM, using platform threads");
+			}
+			else if (args[i].equals("--vnodes") && i + 1 < args.length) {
+				vnodes = Math.max(1, Integer.parseInt(args[++i]));
+			}
+			else {
+				positional.add(args[i]);
+			}
+		}
+		args = positional.toArray(new String[0]);
+
+		// every node of a ring must hash into the full identifier space
+		String error = Handler.configurationError();
+		if (error != null) {
+			System.out.println(error);
+			System.exit(1);
+		}
+
 		// Helps to create binding addresses for creating/joining nodes
 		handler = new Handler();
 		
@@ -34,8 +65,23 @@ public class Ring {
 			e1.printStackTrace();
 		}
 		
-		// create the Node object of the ring
-		currentNodeObj = new Node(Handler.buildSocketAddress(currentIP+":"+args[0]));
+		// create the Node object of the ring; virtual nodes take the following ports and Files-<port> folders
+		int port = Integer.parseInt(args[0]);
+		if (vnodes == 1) {
+			currentNodeObj = new Node(Handler.buildSocketAddress(currentIP+":"+port));
+			virtualNodes = new Node[] { currentNodeObj };
+		}
+		else {
+			Listener listener = new Listener();
+			Maintenance maintenance = new Maintenance(vnodes);
+			virtualNodes = new Node[vnodes];
+			for (int v = 0; v < vnodes; v++) {
+				String folder = v == 0 ? "Files" : "Files-"+(port + v);
+				new File(folder).mkdirs();
+				virtualNodes[v] = new Node(Handler.buildSocketAddress(currentIP+":"+(port + v)), listener, maintenance, folder);
+			}
+			currentNodeObj = virtualNodes[0];
+		}
 		
 		/* Use command line data to choose between creating a new ring and joining an already stable ring */
 		/* If arguments length = 1, the node is initiating a new ring */
@@ -62,6 +108,10 @@ public class Ring {
 		// Join the ring.
 		boolean joined = currentNodeObj.joinRing(requestingNode);
 		
+		// The other virtual nodes join through the first one
+		for (int v = 1; v < virtualNodes.length && joined; v++)
+			joined = virtualNodes[v].joinRing(currentNodeObj.getAddress());
+
 		// Check for create or join failure 
 		if (!joined) {
 			if(args.length == 1)
@@ -72,7 +122,8 @@ public class Ring {
 		}
 
 		/* Node information */
-		currentNodeObj.displayNodeInformation(currentIP);
+		for (Node node : virtualNodes)
+			node.displayNodeInformation(currentIP);
 		/* Node Options */
 		/* Provide a virtual terminal for the node with options to choose */
 		/* Available options are 
@@ -87,14 +138,17 @@ public class Ring {
 			{
 				case 0: continue;
 				case 1: // Display node information 
-					currentNodeObj.displayNodeInformation(currentIP);
+					for (Node node : virtualNodes)
+						node.displayNodeInformation(currentIP);
 					break;
 				case 2: // Display the finger table 
-					currentNodeObj.displayFingerTable();
+					for (Node node : virtualNodes)
+						node.displayFingerTable();
 					break;
 				case 3: // Terminate the processes 
 					System.out.println("Termination of node instance initiated. Killing all the processes.."); 
-					currentNodeObj.terminateNodeInstance();
+					for (Node node : virtualNodes)
+						node.terminateNodeInstance();
 					System.out.println("Node terminated");
 					System.exit(0);
 				break;
@@ -0,0 +1,98 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Immutable, versioned view of a node's routing state: its predecessor,
+ * finger table (finger 1 being the successor) and the list of the next
+ * successors, which takes over at once when the successor fails.
+ * Node publishes the current state through an atomic reference. Readers take
+ * the state once and use it without locking; writers derive a new state and
+ * install it with compare-and-set. Every real change bumps the version, an
+ * update that changes nothing returns the same state.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public final class RoutingState {
+
+	/* Length r of the successor list */
+	public static final int SUCCESSORS = Integer.getInteger("chord.successors", 4);
+
+	final long version;
+	final InetSocketAddress predecessor;
+	final Fingers fingers;
+	/* Successors as last learnt from stabilization, nearest first */
+	final InetSocketAddress[] successors;
+
+	RoutingState(long version, InetSocketAddress predecessor, Fingers fingers, InetSocketAddress[] successors) {
+		this.version = version;
+		this.predecessor = predecessor;
+		this.fingers = fingers;
+		this.successors = nonNull(successors);
+	}
+
+	/* Successor lists decoded from text may hold null for an address that did not parse */
+	private static InetSocketAddress[] nonNull(InetSocketAddress[] list) {
+		for (InetSocketAddress s : list)
+			if (s == null)
+				return Arrays.stream(list).filter(Objects::nonNull).toArray(InetSocketAddress[]::new);
+		return list;
+	}
+
+	public InetSocketAddress successor() {
+		return fingers.get(1);
+	}
+
+	/**
+	 * The successor list: the current successor followed by the known successors after it
+	 * Returns:
+	 *       up to SUCCESSORS distinct addresses, nearest first
+	 */
+	public InetSocketAddress[] successorList() {
+		ArrayList<InetSocketAddress> list = new ArrayList<InetSocketAddress>(SUCCESSORS);
+		if (successor() != null)
+			list.add(successor());
+		for (InetSocketAddress s : successors) {
+			if (list.size() >= SUCCESSORS)
+				break;
+			if (!list.contains(s))
+				list.add(s);
+		}
+		return list.toArray(new InetSocketAddress[0]);
+	}
+
+	public RoutingState withSuccessors(InetSocketAddress[] list) {
+		list = nonNull(list);
+		if (Arrays.equals(successors, list))
+			return this;
+		return new RoutingState(version + 1, predecessor, fingers, list);
+	}
+
+	/* State with finger i set to the address */
+	public RoutingState withFinger(int i, InetSocketAddress address) {
+		return withFingers(fingers.with(i, address));
+	}
+
+	/* State with every finger and successor list entry pointing at the address cleared */
+	public RoutingState withoutFinger(InetSocketAddress address) {
+		ArrayList<InetSocketAddress> list = new ArrayList<InetSocketAddress>(Arrays.asList(successors));
+		list.remove(address);
+		return withFingers(fingers.without(address)).withSuccessors(list.toArray(new InetSocketAddress[0]));
+	}
+
+	public RoutingState withPredecessor(InetSocketAddress pre) {
+		if (Objects.equals(predecessor, pre))
+			return this;
+		return new RoutingState(version + 1, pre, fingers, successors);
+	}
+
+	private RoutingState withFingers(Fingers next) {
+		if (next == fingers)
+			return this;
+		return new RoutingState(version + 1, predecessor, next, successors);
+	}
+}
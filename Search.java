@@ -1,3 +1,5 @@
+import java.io.File;
+import java.io.IOException;
 import java.net.*;
 import java.util.*;
 
@@ -16,9 +18,14 @@ public class Search{
 	private static Handler handler;
 
 	public static void main (String[] args) {
+		String error = Handler.configurationError();
+		if (error != null) {
+			System.out.println(error);
+			System.exit(1);
+		}
 		handler = new Handler();
 		// check for the number of arguments
-		if (args.length == 2) {
+		if (args.length >= 2) {
 			// extract the socket address
 			currentAddress = Handler.buildSocketAddress(args[0]+":"+args[1]);
 			if (currentAddress == null) {
@@ -40,8 +47,8 @@ public class Search{
 			System.out.println("******************************************************************************************");
 			boolean predStatus = false;
 			boolean succStatus = false;
-			InetSocketAddress predNodeAddr = Handler.requestAddress(currentAddress, "RQEPR");			
-			InetSocketAddress succNodeAddr = Handler.requestAddress(currentAddress, "RQCSC");
+			InetSocketAddress predNodeAddr = Handler.requestAddress(currentAddress, Message.of("RQEPR"));			
+			InetSocketAddress succNodeAddr = Handler.requestAddress(currentAddress, Message.of("RQCSC"));
 			if (predNodeAddr == null || succNodeAddr == null) {
 				System.out.println("Error: Could not connect to the node.");
 				System.exit(0);	
@@ -54,8 +61,8 @@ public class Search{
 			// Validity - if both predecessor and successor or both are unavailable
 			while (predStatus^succStatus) {
 				System.out.println("System is stabilizing...");
-				predNodeAddr = Handler.requestAddress(currentAddress, "RQEPR");			
-				succNodeAddr = Handler.requestAddress(currentAddress, "RQCSC");
+				predNodeAddr = Handler.requestAddress(currentAddress, Message.of("RQEPR"));			
+				succNodeAddr = Handler.requestAddress(currentAddress, Message.of("RQCSC"));
 				if (predNodeAddr == null || succNodeAddr == null) {
 					System.out.println("Error: Could not connect to the node");
 					System.exit(0);	
@@ -71,16 +78,67 @@ public class Search{
 
 			}
 
+			// Further arguments are filenames searched as one batch
+			if (args.length > 2) {
+				String[] filenames = Arrays.copyOfRange(args, 2, args.length);
+				long[] hashIds = new long[filenames.length];
+				for (int i = 0; i < filenames.length; i++)
+					hashIds[i] = Handler.hashString(filenames[i]);
+				InetSocketAddress[] located = Handler.fileSearchBatch(currentAddress, hashIds);
+				for (int i = 0; i < filenames.length; i++) {
+					if (located[i] == null)
+						System.out.println(filenames[i]+"\t"+hashIds[i]+"\tnot found");
+					else
+						System.out.println(filenames[i]+"\t"+hashIds[i]+"\t"+located[i].getAddress()+":"+located[i].getPort());
+				}
+				System.exit(0);
+			}
+
 			// Enter the key to be searched
 			Scanner searchKey = new Scanner(System.in);
 			while(true) {
-				System.out.print("\nSearch Engine\n-------------------------\n(Type a filename or 'Exit' to quit the search engine): ");
+				System.out.print("\nSearch Engine\n-------------------------\n(Type a filename, 'get filename' to download it or 'Exit' to quit the search engine): ");
 				String command = searchKey.nextLine();
 	
 				if (command.toLowerCase().startsWith("exit")) 
 				{
 					System.exit(0);				
 				}
+				else if (command.toLowerCase().startsWith("get ") && command.trim().length() > 4)
+				{
+					String filename = command.substring(4).trim();
+					long hashId = Handler.hashString(filename);
+					System.out.println("\nSearch Key Hash Value: "+hashId);
+					System.out.println("Locating file...");
+					InetSocketAddress owner = Handler.fileSearch(currentAddress, hashId);
+					InetSocketAddress nodeAddr = owner;
+					long length = -1;
+					if (owner != null)
+					{
+						// read from one of the copies of the file, the owner's if that one fails;
+						// stored in the working directory under the file's own name
+						nodeAddr = Handler.chooseReplica(owner, hashId);
+						File target = new File(new File(filename).getName());
+						try
+						{
+							length = FileTransfer.download(nodeAddr, hashId, target);
+							if (length < 0 && !nodeAddr.equals(owner))
+							{
+								nodeAddr = owner;
+								length = FileTransfer.download(nodeAddr, hashId, target);
+							}
+						}
+						catch (IOException e)
+						{
+							System.out.println("Download failed: "+e.getMessage());
+							continue;
+						}
+					}
+					if (length < 0)
+						System.out.println("The file does not exist in the system");
+					else
+						System.out.println("Downloaded "+length+" bytes from "+nodeAddr.getAddress()+":"+nodeAddr.getPort());
+				}
 				else if (command.length() > 0)
 				{
 					long hashId = Handler.hashString(command);
@@ -0,0 +1,497 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Log-structured key value store: values are appended to segment files, in
+ * the .segments folder of the node, and found through an in-memory index of
+ * where each key's latest record is.
+ * A record is a type (put or delete), the key, the file name and the value:
+ *       1 byte type, 8 byte key, 2 byte name length, name, 8 byte value length, value
+ * Writes only ever append to the active segment, so small values cost one
+ * sequential write. Once the active segment reaches SEGMENT_BYTES it is
+ * sealed with a footer listing its records, followed by a 16 byte trailer
+ * (footer position, record count, magic number); at startup the index is
+ * rebuilt from the footers alone, and only a segment left unsealed by a crash
+ * is scanned record by record (a torn last record is cut off).
+ * Overwritten and deleted values leave garbage behind: a sealed segment of
+ * which COMPACT_RATIO is garbage is compacted in the background, its live
+ * records copied to the active segment before it is deleted.
+ * Plain files found in the node's folder when the store opens are imported
+ * into the log and removed from the folder.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class SegmentStore implements KeyValueStore {
+
+	/* Size from which the active segment is sealed and a new one started */
+	private static final long SEGMENT_BYTES = Long.getLong("chord.store.segmentBytes", 64L * 1024 * 1024);
+	/* Share of garbage from which a sealed segment is compacted */
+	private static final double COMPACT_RATIO = Double.parseDouble(System.getProperty("chord.store.compactRatio", "0.5"));
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final int MAGIC = 0x43485347;
+	private static final int TRAILER_BYTES = 16;
+	/* Bytes of a footer entry besides its name: type, key, name length, value position and length */
+	private static final int FOOTER_ENTRY_BYTES = 27;
+
+	private static final class Segment {
+		final int number;
+		final File file;
+		/* Bytes of records, the footer excluded */
+		long size;
+		/* Bytes of the records the index still points to */
+		long live;
+
+		Segment(int number, File file) {
+			this.number = number;
+			this.file = file;
+		}
+	}
+
+	/* One record, as listed in a footer */
+	private static final class Entry {
+		final byte type;
+		final long key;
+		final String name;
+		final long value;
+		final long length;
+
+		Entry(byte type, long key, String name, long value, long length) {
+			this.type = type;
+			this.key = key;
+			this.name = name;
+			this.value = value;
+			this.length = length;
+		}
+
+		long recordBytes() {
+			return headerBytes(name) + length;
+		}
+	}
+
+	/* Where the latest value of a key is */
+	private static final class Location {
+		final Segment segment;
+		final Entry entry;
+
+		Location(Segment segment, Entry entry) {
+			this.segment = segment;
+			this.entry = entry;
+		}
+	}
+
+	private final File folder;
+	private final File directory;
+	private final ConcurrentHashMap<Long, Location> index = new ConcurrentHashMap<Long, Location>();
+	// Segments by number; the active one is the last. Guarded by lock, as are all writes
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private Segment active;
+	private FileChannel log;
+	// Records of the active segment, for its footer
+	private ArrayList<Entry> activeEntries = new ArrayList<Entry>();
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+	public SegmentStore(File folder) throws IOException {
+		if (!folder.isDirectory())
+			throw new IOException("Not a folder: "+folder);
+		this.folder = folder;
+		this.directory = new File(folder, ".segments");
+		directory.mkdirs();
+		load();
+		importFiles();
+	}
+
+	/* ******************************** Startup ************************************** */
+
+	private void load() throws IOException {
+		TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+		File[] listed = directory.listFiles();
+		if (listed == null)
+			throw new IOException("Cannot list "+directory);
+		for (File file : listed) {
+			String name = file.getName();
+			if (name.matches("\\d{8}\\.seg"))
+				files.put(Integer.parseInt(name.substring(0, 8)), file);
+		}
+		for (Map.Entry<Integer, File> file : files.entrySet()) {
+			Segment segment = new Segment(file.getKey(), file.getValue());
+			boolean last = file.getKey().equals(files.lastKey());
+			try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ArrayList<Entry> entries = readFooter(segment, channel);
+				boolean sealed = entries != null;
+				if (!sealed)
+					entries = scan(segment, channel);
+				segments.put(segment.number, segment);
+				for (Entry entry : entries)
+					apply(segment, entry);
+				if (last) {
+					channel.truncate(segment.size);
+					activeEntries = entries;
+				}
+				else if (!sealed) {
+					writeFooter(channel, segment.size, entries);
+				}
+			}
+		}
+		// the last segment stays the active one, its footer dropped until it is sealed again
+		if (segments.isEmpty())
+			startSegment(1);
+		else {
+			active = segments.lastEntry().getValue();
+			log = FileChannel.open(active.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+
+	/* The records listed in the footer of a sealed segment, or null if it has none */
+	private ArrayList<Entry> readFooter(Segment segment, FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < TRAILER_BYTES)
+			return null;
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+		readFully(channel, trailer, size - TRAILER_BYTES);
+		long footer = trailer.getLong(0);
+		int count = trailer.getInt(8);
+		if (trailer.getInt(12) != MAGIC || footer < 0 || footer > size - TRAILER_BYTES || count < 0)
+			return null;
+		// a corrupt trailer is read as no footer, and the segment scanned instead
+		long footerBytes = size - TRAILER_BYTES - footer;
+		if (footerBytes > Integer.MAX_VALUE || (long) count * FOOTER_ENTRY_BYTES > footerBytes
+				|| footerBytes > (long) count * (FOOTER_ENTRY_BYTES + 0xFFFF))
+			return null;
+		ByteBuffer buffer = ByteBuffer.allocate((int) footerBytes);
+		readFully(channel, buffer, footer);
+		buffer.flip();
+		ArrayList<Entry> entries = new ArrayList<Entry>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				byte type = buffer.get();
+				long key = buffer.getLong();
+				byte[] name = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(name);
+				long value = buffer.getLong();
+				long length = buffer.getLong();
+				if (value < 0 || length < 0 || value > footer - length)
+					return null;
+				entries.add(new Entry(type, key, new String(name, StandardCharsets.UTF_8), value, length));
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if (buffer.hasRemaining())
+			return null;
+		segment.size = footer;
+		return entries;
+	}
+
+	/* Read the records of a segment left unsealed, cutting off a torn last record */
+	private ArrayList<Entry> scan(Segment segment, FileChannel channel) throws IOException {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer fixed = ByteBuffer.allocate(11);
+		ByteBuffer length = ByteBuffer.allocate(8);
+		while (position + 19 <= size) {
+			fixed.clear();
+			readFully(channel, fixed, position);
+			byte type = fixed.get(0);
+			long key = fixed.getLong(1);
+			int nameLength = fixed.getShort(9) & 0xFFFF;
+			if ((type != PUT && type != DELETE) || position + 19 + nameLength > size)
+				break;
+			ByteBuffer name = ByteBuffer.allocate(nameLength);
+			readFully(channel, name, position + 11);
+			length.clear();
+			readFully(channel, length, position + 11 + nameLength);
+			long value = position + 19 + nameLength;
+			long valueLength = length.getLong(0);
+			if (valueLength < 0 || value + valueLength > size)
+				break;
+			entries.add(new Entry(type, key, new String(name.array(), StandardCharsets.UTF_8), value, valueLength));
+			position = value + valueLength;
+		}
+		channel.truncate(position);
+		segment.size = position;
+		return entries;
+	}
+
+	/* Move the plain files of the node's folder into the log */
+	private void importFiles() throws IOException {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			if (file.isFile() && !file.getName().startsWith("."))
+				put(Handler.hashString(file.getName()), file.getName(), file.toPath());
+	}
+
+	/* ******************************** Reads ************************************** */
+
+	@Override
+	public Iterable<Map.Entry<Long, String>> entries() {
+		ArrayList<Map.Entry<Long, String>> entries = new ArrayList<Map.Entry<Long, String>>();
+		for (Map.Entry<Long, Location> location : index.entrySet())
+			entries.add(new AbstractMap.SimpleImmutableEntry<Long, String>(location.getKey(), location.getValue().entry.name));
+		return entries;
+	}
+
+	@Override
+	public boolean contains(long key, String name) {
+		return index.containsKey(key);
+	}
+
+	/* The index is rebuilt from the segments at startup anyway */
+	@Override
+	public long stamp() {
+		return 0;
+	}
+
+	@Override
+	public Region read(long key, String name) throws IOException {
+		// a segment compacted meanwhile is gone: its records are in a later one by then
+		for (int attempt = 0; attempt < 2; attempt++) {
+			Location location = index.get(key);
+			if (location == null)
+				return null;
+			try {
+				FileChannel channel = FileChannel.open(location.segment.file.toPath(), StandardOpenOption.READ);
+				return new Region(channel, location.entry.value, location.entry.length);
+			} catch (NoSuchFileException e) {
+				// look the key up again
+			}
+		}
+		return null;
+	}
+
+	/* ******************************** Writes ************************************** */
+
+	@Override
+	public void put(long key, String name, byte[] content) throws IOException {
+		lock.lock();
+		try {
+			append(PUT, key, name, ByteBuffer.wrap(content), null, 0, content.length);
+		} finally {
+			lock.unlock();
+		}
+		compactIfNeeded();
+	}
+
+	@Override
+	public void put(long key, String name, Path staged) throws IOException {
+		lock.lock();
+		try (FileChannel source = FileChannel.open(staged, StandardOpenOption.READ)) {
+			append(PUT, key, name, null, source, 0, source.size());
+		} finally {
+			lock.unlock();
+		}
+		Files.delete(staged);
+		compactIfNeeded();
+	}
+
+	@Override
+	public void remove(long key, String name) throws IOException {
+		lock.lock();
+		try {
+			if (!index.containsKey(key))
+				return;
+			append(DELETE, key, name, null, null, 0, 0);
+		} finally {
+			lock.unlock();
+		}
+		compactIfNeeded();
+	}
+
+	/* Seal the active segment, so the next start reads its footer */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (log == null)
+				return;
+			writeFooter(log, active.size, activeEntries);
+			log.force(true);
+			log.close();
+			log = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Append a record, from bytes or from a region of a channel; called holding the lock */
+	private void append(byte type, long key, String name, ByteBuffer bytes, FileChannel source, long position, long length) throws IOException {
+		if (log == null)
+			throw new IOException("Store closed");
+		if (active.size >= SEGMENT_BYTES) {
+			writeFooter(log, active.size, activeEntries);
+			log.force(true);
+			log.close();
+			startSegment(active.number + 1);
+		}
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(19 + nameBytes.length);
+		header.put(type).putLong(key).putShort((short) nameBytes.length).put(nameBytes).putLong(length);
+		header.flip();
+		long record = active.size;
+		long value = record + header.capacity();
+		writeFully(log, header, record);
+		if (bytes != null)
+			writeFully(log, bytes, value);
+		else if (source != null)
+			for (long done = 0; done < length; ) {
+				long n = source.transferTo(position + done, length - done, log.position(value + done));
+				if (n <= 0)
+					throw new EOFException("Value source ended early");
+				done += n;
+			}
+		active.size = value + length;
+		Entry entry = new Entry(type, key, name, value, length);
+		activeEntries.add(entry);
+		apply(active, entry);
+	}
+
+	/* Point the index at a record, keeping the live bytes of the segments up to date */
+	private void apply(Segment segment, Entry entry) {
+		Location previous;
+		if (entry.type == PUT) {
+			previous = index.put(entry.key, new Location(segment, entry));
+			segment.live += entry.recordBytes();
+		}
+		else {
+			// a delete record only hides older values and counts as garbage itself
+			previous = index.remove(entry.key);
+		}
+		if (previous != null)
+			previous.segment.live -= previous.entry.recordBytes();
+	}
+
+	private void startSegment(int number) throws IOException {
+		active = new Segment(number, new File(directory, String.format("%08d.seg", number)));
+		segments.put(number, active);
+		log = FileChannel.open(active.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		activeEntries = new ArrayList<Entry>();
+	}
+
+	private static void writeFooter(FileChannel channel, long footer, ArrayList<Entry> entries) throws IOException {
+		int size = TRAILER_BYTES;
+		for (Entry entry : entries)
+			size += FOOTER_ENTRY_BYTES + entry.name.getBytes(StandardCharsets.UTF_8).length;
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (Entry entry : entries) {
+			byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+			buffer.put(entry.type).putLong(entry.key).putShort((short) name.length).put(name).putLong(entry.value).putLong(entry.length);
+		}
+		buffer.putLong(footer).putInt(entries.size()).putInt(MAGIC);
+		buffer.flip();
+		channel.truncate(footer);
+		writeFully(channel, buffer, footer);
+	}
+
+	/* ******************************** Compaction ************************************** */
+
+	private void compactIfNeeded() {
+		Segment candidate = null;
+		lock.lock();
+		try {
+			for (Segment segment : segments.values())
+				if (segment != active && segment.size > 0 && segment.size - segment.live >= COMPACT_RATIO * segment.size) {
+					candidate = segment;
+					break;
+				}
+		} finally {
+			lock.unlock();
+		}
+		if (candidate == null || !compacting.compareAndSet(false, true))
+			return;
+		Segment segment = candidate;
+		Threads.executor().execute(() -> {
+			try {
+				compact(segment);
+			} catch (IOException e) {
+				System.out.println("Compaction of "+segment.file+" failed: "+e.getMessage());
+			} finally {
+				compacting.set(false);
+			}
+		});
+	}
+
+	/* Copy the live records of a sealed segment to the active one and delete it */
+	private void compact(Segment segment) throws IOException {
+		lock.lock();
+		try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+			if (log == null || !segments.containsKey(segment.number))
+				return;
+			ArrayList<Entry> entries = readFooter(segment, channel);
+			if (entries == null)
+				return;
+			HashSet<Long> olderKeys = olderKeys(segment);
+			for (Entry entry : entries) {
+				Location location = index.get(entry.key);
+				if (entry.type == PUT && location != null && location.segment == segment && location.entry.value == entry.value)
+					append(PUT, entry.key, entry.name, null, channel, entry.value, entry.length);
+				// a delete is kept while an older segment has a value it hides and the key was not stored again
+				else if (entry.type == DELETE && location == null && olderKeys.contains(entry.key))
+					append(DELETE, entry.key, entry.name, null, null, 0, 0);
+			}
+			log.force(true);
+			segments.remove(segment.number);
+			Files.delete(segment.file.toPath());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Keys with values in the segments before the given one; called holding the lock */
+	private HashSet<Long> olderKeys(Segment segment) throws IOException {
+		HashSet<Long> keys = new HashSet<Long>();
+		for (Segment older : segments.headMap(segment.number).values())
+			try (FileChannel channel = FileChannel.open(older.file.toPath(), StandardOpenOption.READ)) {
+				ArrayList<Entry> entries = readFooter(older, channel);
+				if (entries != null)
+					for (Entry entry : entries)
+						if (entry.type == PUT)
+							keys.add(entry.key);
+			}
+		return keys;
+	}
+
+	/* ******************************** Channel helpers ************************************** */
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0)
+				throw new EOFException("Segment ended early");
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position() - start);
+	}
+
+	private static long headerBytes(String name) {
+		return 19 + name.getBytes(StandardCharsets.UTF_8).length;
+	}
+}
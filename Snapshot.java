@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Memory-mapped snapshot of a node's file index and routing state, so a
+ * restarted node resumes with both warm instead of rehashing its files and
+ * rebuilding its fingers from scratch.
+ * Layout (big-endian, addresses as in WireCodec):
+ *       magic, format version, node ID, identifier bits M, hash name,
+ *       store stamp, predecessor, the M fingers, the successor list,
+ *       then the file index as count and per file ID, name length, UTF-8 name
+ * A snapshot is written to a temporary file through a mapping and moved over
+ * the previous one, so a crash leaves the old snapshot or the new one.
+ * Snapshots of another node, ID width or hash are ignored.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class Snapshot {
+
+	/* chord.snapshot=false turns snapshots off */
+	public static final boolean ENABLED = !"false".equals(System.getProperty("chord.snapshot"));
+	/* Period of the snapshot round while the node changes, and the most it backs off to */
+	public static final int MIN_PERIOD = Integer.getInteger("chord.snapshot.minMillis", 5000);
+	public static final int MAX_PERIOD = Integer.getInteger("chord.snapshot.maxMillis", 60000);
+
+	private static final int MAGIC = 0x43534E50;
+	private static final int FORMAT = 1;
+
+	final InetSocketAddress predecessor;
+	/* Fingers 1 to M, index 0 unused */
+	final InetSocketAddress[] fingers;
+	final InetSocketAddress[] successors;
+	final long storeStamp;
+	/* The mapped file, positioned at the file index */
+	private final MappedByteBuffer files;
+
+	private Snapshot(InetSocketAddress predecessor, InetSocketAddress[] fingers, InetSocketAddress[] successors, long storeStamp, MappedByteBuffer files) {
+		this.predecessor = predecessor;
+		this.fingers = fingers;
+		this.successors = successors;
+		this.storeStamp = storeStamp;
+		this.files = files;
+	}
+
+	/**
+	 * Write the snapshot of a node
+	 * Args:
+	 *       file: the snapshot file
+	 *       nodeId: the node's ID
+	 *       state: the node's routing state
+	 *       index: the node's file index
+	 *       storeStamp: stamp of the store the index belongs to
+	 */
+	public static void write(File file, long nodeId, RoutingState state, FileIndex index, long storeStamp) throws IOException {
+		byte[] hash = Handler.HASH.getBytes(StandardCharsets.UTF_8);
+		InetSocketAddress[] successors = state.successorList();
+		// the index may change while it is written: take the entries once
+		ArrayList<Map.Entry<Long, String>> entries = new ArrayList<Map.Entry<Long, String>>();
+		for (Map.Entry<Long, String> entry : index.entries())
+			entries.add(entry);
+
+		long size = 4 + 4 + 8 + 4 + 2 + hash.length + 8;
+		size += WireCodec.addressSize(state.predecessor);
+		for (int i = 1; i <= Handler.M; i++)
+			size += WireCodec.addressSize(state.fingers.get(i));
+		size += 4;
+		for (InetSocketAddress successor : successors)
+			size += WireCodec.addressSize(successor);
+		size += 4;
+		for (Map.Entry<Long, String> entry : entries)
+			size += 8 + 2 + entry.getValue().getBytes(StandardCharsets.UTF_8).length;
+
+		File temporary = new File(file.getPath()+".tmp");
+		try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			out.putInt(MAGIC).putInt(FORMAT).putLong(nodeId).putInt(Handler.M);
+			out.putShort((short) hash.length).put(hash);
+			out.putLong(storeStamp);
+			WireCodec.putAddress(out, state.predecessor);
+			for (int i = 1; i <= Handler.M; i++)
+				WireCodec.putAddress(out, state.fingers.get(i));
+			out.putInt(successors.length);
+			for (InetSocketAddress successor : successors)
+				WireCodec.putAddress(out, successor);
+			out.putInt(entries.size());
+			for (Map.Entry<Long, String> entry : entries) {
+				byte[] name = entry.getValue().getBytes(StandardCharsets.UTF_8);
+				out.putLong(entry.getKey()).putShort((short) name.length).put(name);
+			}
+			out.force();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Map the snapshot of a node
+	 * Args:
+	 *       file: the snapshot file
+	 *       nodeId: the node's ID
+	 *
+	 * Returns:
+	 *       the snapshot, or null if there is none for this node or it cannot be read
+	 */
+	public static Snapshot read(File file, long nodeId) {
+		if (!file.isFile())
+			return null;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// the mapping stays valid once the channel is closed
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != FORMAT || in.getLong() != nodeId || in.getInt() != Handler.M)
+				return null;
+			byte[] hash = new byte[in.getShort() & 0xFFFF];
+			in.get(hash);
+			if (!Handler.HASH.equals(new String(hash, StandardCharsets.UTF_8)))
+				return null;
+			long storeStamp = in.getLong();
+			InetSocketAddress predecessor = WireCodec.getAddress(in);
+			InetSocketAddress[] fingers = new InetSocketAddress[Handler.M + 1];
+			for (int i = 1; i <= Handler.M; i++)
+				fingers[i] = WireCodec.getAddress(in);
+			InetSocketAddress[] successors = new InetSocketAddress[in.getInt()];
+			for (int i = 0; i < successors.length; i++)
+				successors[i] = WireCodec.getAddress(in);
+			return new Snapshot(predecessor, fingers, successors, storeStamp, in);
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Fill a file index from the snapshot
+	 * Args:
+	 *       index: the index to fill
+	 *
+	 * Returns:
+	 *       false if the index part of the snapshot is damaged
+	 */
+	public boolean restoreIndex(FileIndex index) {
+		try {
+			int count = files.getInt();
+			for (int i = 0; i < count; i++) {
+				long id = files.getLong();
+				byte[] name = new byte[files.getShort() & 0xFFFF];
+				files.get(name);
+				index.put(id, new String(name, StandardCharsets.UTF_8));
+			}
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+}
@@ -1,72 +1,69 @@
 import java.net.*;
 
 /**
- * Stabilization thread that periodically asks successor for its predecessor
+ * Stabilization round, run periodically, that asks successor for its predecessor
  * and determine if current node should update or delete its successor.
+ * The successor also returns its successor list, which becomes the list of
+ * backups the current node fails over to.
  * @author Srivatsa Udupa
  * @author Anusha Naik
  * @author Prarthana Raghavan
  */
 
-public class Stabilization extends Thread {
+public class Stabilization implements Runnable {
 	
+	/* Period while the ring changes, and the most it backs off to while it is stable */
+	static final int MIN_PERIOD = Integer.getInteger("chord.stabilize.minMillis", 60);
+	static final int MAX_PERIOD = Integer.getInteger("chord.stabilize.maxMillis", 2000);
+
 	private Node currentNode;
-	private boolean status;
 
 	public Stabilization(Node currentNode) {
 		this.currentNode = currentNode;
-		this.status = true;
 	}
 
 	@Override
 	public void run() {
-		while (status) {
-			InetSocketAddress succNode = currentNode.getSuccessor();
-			if (succNode == null || succNode.equals(currentNode.getAddress())) {
-				currentNode.updateFingers(-3, null); //fill
-			}
-			succNode = currentNode.getSuccessor();
-			if (succNode != null && !succNode.equals(currentNode.getAddress())) {
+		InetSocketAddress succNode = currentNode.getSuccessor();
+		if (succNode == null || succNode.equals(currentNode.getAddress())) {
+			currentNode.updateFingers(-3, null); //fill
+		}
+		succNode = currentNode.getSuccessor();
+		if (succNode != null && !succNode.equals(currentNode.getAddress())) {
 
-				// try to get my successor's predecessor
-				InetSocketAddress preSuccNode = Handler.requestAddress(succNode, "RQEPR");
+			// try to get my successor's predecessor, and its successor list in the same request
+			InetSocketAddress preSuccNode;
+			Message response = CommunicationHandler.send(succNode, Message.of("RQSTB", currentNode.getAddress()));
+			if (response != null && response.is("RPSTB")) {
+				preSuccNode = response.address != null ? response.address : succNode;
+				if (response.addresses != null)
+					currentNode.updateSuccessorList(response.addresses);
+			}
+			// nodes without a successor list only answer RQEPR
+			else {
+				preSuccNode = Handler.requestAddress(succNode, Message.of("RQEPR"));
+			}
 
-				// if bad connection with successor! delete successor
-				if (preSuccNode == null) {
-					currentNode.updateFingers(-1, null);
-				}
+			// if bad connection with successor! delete successor
+			if (preSuccNode == null) {
+				currentNode.updateFingers(-1, null);
+			}
 
-				// else if successor's predecessor is not itself
-				else if (!preSuccNode.equals(succNode)) {
-					long currentNodeId = Handler.hashSocketAddress(currentNode.getAddress());
-					long succRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(succNode), currentNodeId);
-					long preSuccRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(preSuccNode),currentNodeId);
-					if (preSuccRelativeId>0 && preSuccRelativeId < succRelativeId) {
-						currentNode.updateFingers(1,preSuccNode);
-					}
-				}
-				
-				// successor's predecessor is successor itself, then notify successor
-				else {
-					currentNode.notify(succNode);
+			// else if successor's predecessor is not itself
+			else if (!preSuccNode.equals(succNode)) {
+				long currentNodeId = currentNode.getId();
+				long succRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(succNode), currentNodeId);
+				long preSuccRelativeId = Handler.computeRelativeId(Handler.hashSocketAddress(preSuccNode),currentNodeId);
+				if (preSuccRelativeId>0 && preSuccRelativeId < succRelativeId) {
+					currentNode.updateFingers(1,preSuccNode);
 				}
 			}
-
-			try {
-				Thread.sleep(60);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			
+			// successor's predecessor is successor itself, then notify successor
+			else {
+				currentNode.notify(succNode);
 			}
 		}
 
 	}
-
-	public void kill() {
-		status = false;
-	}
-
-
-
-
-
 }
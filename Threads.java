@@ -0,0 +1,114 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads a node runs on.
+ * Platform threads are used by default. In virtual mode (Java 21 and later)
+ * receivers and the maintenance tasks, and so every request they send, run on
+ * virtual threads: a blocked request only parks a cheap virtual thread instead
+ * of holding a carrier. The virtual thread API is looked up reflectively so the code still
+ * builds and runs with platform threads on older JDKs.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class Threads {
+
+	private static volatile boolean virtual = false;
+	private static Method ofVirtual;
+	private static Method builderName;
+	private static Method builderUnstarted;
+	private static ExecutorService executor;
+
+	/**
+	 * Switch to virtual threads if the running JDK supports them
+	 * Returns:
+	 *       true if virtual threads are now in use
+	 */
+	public static boolean enableVirtual() {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+			virtual = true;
+		} catch (ReflectiveOperationException e) {
+			virtual = false;
+		}
+		return virtual;
+	}
+
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Create an unstarted thread for the task
+	 * Args:
+	 *       name: thread name
+	 *       task: the work to run
+	 *
+	 * Returns:
+	 *       a virtual thread in virtual mode, a platform thread otherwise
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		if (virtual) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread) builderUnstarted.invoke(builder, task);
+			} catch (ReflectiveOperationException e) {
+				// fall through to a platform thread
+			}
+		}
+		return new Thread(task, name);
+	}
+
+	/* Create and start a thread for the task */
+	public static Thread start(String name, Runnable task) {
+		Thread t = newThread(name, task);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Thread factory for executors
+	 * Args:
+	 *       name: name of the threads
+	 *
+	 * Returns:
+	 *       factory of virtual threads in virtual mode, of daemon platform threads otherwise
+	 */
+	public static ThreadFactory factory(String name) {
+		return task -> {
+			Thread t = newThread(name, task);
+			if (!virtual)
+				t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Executor for the blocking requests of asynchronous lookups
+	 * Returns:
+	 *       one virtual thread per task in virtual mode, a cached pool of daemon threads otherwise
+	 */
+	public static synchronized ExecutorService executor() {
+		if (executor == null) {
+			if (virtual) {
+				try {
+					executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				} catch (ReflectiveOperationException e) {
+					// fall through to platform threads
+				}
+			}
+			if (executor == null) {
+				executor = Executors.newCachedThreadPool(factory("lookup"));
+			}
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,520 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+
+/**
+ * Encodes and decodes messages for the wire.
+ * Every frame is a 4 byte length followed by the message in one of two formats:
+ *       - Text (legacy): CODE_field1_field2..., e.g. RQIM_1234 or RPCSC_/10.0.0.1:5000
+ *       - Binary: a 0 byte, the opcode byte and the fields of the code
+ *             id       - 4 bytes, unsigned (8 bytes with identifiers wider than 32 bits)
+ *             address  - 1 byte address length (4, 16 or 0 for none), the raw IP, 2 byte port
+ *             names    - 4 byte count, then per name a 2 byte length and the UTF-8 bytes
+ *             addresses - 2 byte count, then each address as above
+ *             ids      - 4 byte count, then each id as above
+ *             offset   - 8 bytes
+ *             bytes    - 4 byte length and the raw bytes (Base64 in the text format)
+ *             count    - 8 bytes
+ *             checksum - 4 bytes, unsigned
+ *             total    - 8 bytes
+ * An RPGETF frame is followed by count raw bytes of file content, which are
+ * not part of the frame.
+ * A text message never starts with a 0 byte, so the receiver tells the formats
+ * apart per frame and answers in the format of the request. A sender only uses
+ * the binary format on connections where the peer accepted it (RQCODEC).
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public class WireCodec {
+
+	static final byte BINARY = 0;
+	/* Bytes of an id in the binary format */
+	private static final int ID_BYTES = Handler.M > 32 ? 8 : 4;
+
+	/*
+	 * Message codes and their fields, the index being the binary opcode.
+	 * Field letters: I - id, A - address, N - list of names, S - list of addresses,
+	 * L - list of ids, O - offset, B - bytes, C - count, K - checksum,
+	 * T - total length
+	 * (lists are always last)
+	 * New codes are appended so existing opcodes never change. Fields may be
+	 * appended to a code as well: fields missing from a message decode as empty.
+	 */
+	private static final String[][] CODES = {
+		{ "NRP", "" },
+		{ "RQCODEC", "" },	{ "RPCODEC", "" },
+		{ "RQIM", "I" },	{ "RPIM", "A" },
+		{ "RQCSC", "" },	{ "RPCSC", "A" },
+		{ "RQEPR", "" },	{ "RPEPR", "A" },
+		{ "RQFSC", "I" },	{ "RPFSC", "A" },
+		{ "RQFILE", "IA" },	{ "RETFILE", "N" },
+		{ "RQFTX", "N" },	{ "RPFTXCMP", "" },
+		{ "RQCHF", "I" },	{ "RPEXISTS", "" },	{ "RPNFL", "" },
+		{ "RQPNGPRE", "A" },	{ "RPPNGD", "" },
+		{ "RQALV", "A" },	{ "RPALV", "" },
+		{ "RQSTB", "A" },	{ "RPSTB", "AS" },
+		{ "RQCPS", "I" },	{ "RPCPSF", "A" },	{ "RPCPS", "AS" },
+		{ "RQBFSC", "L" },	{ "RPBFSC", "S" },
+		{ "RQBCHF", "L" },	{ "RPBCHF", "L" },
+		{ "RQFTB", "" },	{ "RPFTB", "S" },
+		{ "RQXBEG", "IOBK" },	{ "RPXBEG", "O" },
+		{ "RQXPUT", "IOBK" },	{ "RPXACK", "O" },
+		{ "RQXEND", "IOBK" },	{ "RPXEND", "" },
+		{ "RPFSTR", "" },
+		{ "RQGETF", "IOC" },	{ "RPGETF", "OCKT" },
+		{ "RQRSYN", "L" },	{ "RPRSYN", "L" },
+		{ "RQXREP", "IOBK" },
+		{ "RQREPL", "I" },	{ "RPREPL", "S" },
+		{ "RQRBEG", "IOBK" },	{ "RQRPUT", "IOBK" },
+		{ "RQFSF", "I" },	{ "RQCPF", "I" },
+	};
+	private static final char[][] FIELDS = new char[CODES.length][];
+	private static final char[] UNKNOWN_FIELDS = { 'N' };
+	private static final HashMap<String, Integer> OPCODES = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < CODES.length; i++) {
+			OPCODES.put(CODES[i][0], i);
+			FIELDS[i] = CODES[i][1].toCharArray();
+		}
+	}
+
+	private static char[] fields(String code) {
+		Integer opcode = OPCODES.get(code);
+		// unknown codes keep all of their fields as names
+		return opcode == null ? UNKNOWN_FIELDS : FIELDS[opcode];
+	}
+
+	/* ******************************** Text format ************************************** */
+
+	public static String toText(Message m) {
+		StringBuilder sb = new StringBuilder(m.code);
+		for (char field : fields(m.code)) {
+			switch (field) {
+				case 'I':
+					sb.append('_').append(m.id);
+					break;
+				case 'A':
+					appendAddress(sb, m.address);
+					break;
+				case 'S':
+					if (m.addresses != null)
+						for (InetSocketAddress address : m.addresses)
+							appendAddress(sb, address);
+					break;
+				case 'N':
+					if (m.names != null)
+						for (String name : m.names)
+							sb.append('_').append(name);
+					break;
+				case 'L':
+					if (m.ids != null)
+						for (long id : m.ids)
+							sb.append('_').append(id);
+					break;
+				case 'O':
+					sb.append('_').append(m.offset);
+					break;
+				case 'B':
+					sb.append('_').append(m.data == null ? "" : Base64.getEncoder().encodeToString(m.data));
+					break;
+				case 'C':
+					sb.append('_').append(m.count);
+					break;
+				case 'T':
+					sb.append('_').append(m.total);
+					break;
+				case 'K':
+					sb.append('_').append(m.checksum);
+					break;
+			}
+		}
+		return sb.toString();
+	}
+
+	/* A missing address is written as "-", which does not parse as an address */
+	private static void appendAddress(StringBuilder sb, InetSocketAddress address) {
+		if (address == null)
+			sb.append("_-");
+		else
+			sb.append("_/").append(address.getAddress().getHostAddress()).append(':').append(address.getPort());
+	}
+
+	public static Message parseText(String text) {
+		String[] parts = text.split("_");
+		Message m = new Message(parts[0]);
+		int k = 1;
+		for (char field : fields(m.code)) {
+			if (k >= parts.length)
+				break;
+			switch (field) {
+				case 'I':
+					m.id = Long.parseLong(parts[k++]);
+					break;
+				case 'A':
+					m.address = Handler.buildSocketAddress(parts[k++]);
+					break;
+				case 'N':
+					m.names = Arrays.copyOfRange(parts, k, parts.length);
+					k = parts.length;
+					break;
+				case 'S':
+					m.addresses = new InetSocketAddress[parts.length - k];
+					for (int i = 0; k < parts.length; i++)
+						m.addresses[i] = Handler.buildSocketAddress(parts[k++]);
+					break;
+				case 'L':
+					m.ids = new long[parts.length - k];
+					for (int i = 0; k < parts.length; i++)
+						m.ids[i] = Long.parseLong(parts[k++]);
+					break;
+				case 'O':
+					m.offset = Long.parseLong(parts[k++]);
+					break;
+				case 'B':
+					m.data = Base64.getDecoder().decode(parts[k++]);
+					break;
+				case 'C':
+					m.count = Long.parseLong(parts[k++]);
+					break;
+				case 'T':
+					m.total = Long.parseLong(parts[k++]);
+					break;
+				case 'K':
+					m.checksum = Long.parseLong(parts[k++]);
+					break;
+			}
+		}
+		return m;
+	}
+
+	/* ******************************** Framing ************************************** */
+
+	/**
+	 * Encode a message as a complete frame (length prefix included)
+	 * Args:
+	 *       m: the message, null for an empty frame
+	 *       binary: whether the binary format may be used
+	 *       buffer: buffer to reuse, may be null
+	 *
+	 * Returns:
+	 *       the buffer holding the frame, ready to be written; a new one if the given one was too small
+	 */
+	public static ByteBuffer encodeFrame(Message m, boolean binary, ByteBuffer buffer) {
+		Integer opcode = m == null ? null : OPCODES.get(m.code);
+		byte[] text = null;
+		int size;
+		if (m == null)
+			size = 0;
+		else if (binary && opcode != null)
+			size = binarySize(m, opcode);
+		else {
+			text = toText(m).getBytes(StandardCharsets.UTF_8);
+			size = text.length;
+		}
+		if (buffer == null || buffer.capacity() < size + 4)
+			buffer = ByteBuffer.allocate(Math.max(size + 4, 256));
+		buffer.clear();
+		buffer.putInt(size);
+		if (text != null)
+			buffer.put(text);
+		else if (size > 0)
+			encodeBinary(m, opcode, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Decode the payload of a frame
+	 * Args:
+	 *       payload: the frame without its length prefix
+	 *
+	 * Returns:
+	 *       the message, or null for an empty frame
+	 */
+	public static Message decode(ByteBuffer payload) {
+		if (!payload.hasRemaining())
+			return null;
+		if (payload.get(payload.position()) != BINARY)
+			return parseText(new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8));
+		payload.get();
+		int opcode = payload.get() & 0xFF;
+		if (opcode >= CODES.length)
+			throw new IllegalArgumentException("Unknown opcode "+opcode);
+		Message m = new Message(CODES[opcode][0]);
+		for (char field : FIELDS[opcode]) {
+			if (!payload.hasRemaining())
+				break;
+			switch (field) {
+				case 'I':
+					m.id = getId(payload);
+					break;
+				case 'A':
+					m.address = getAddress(payload);
+					break;
+				case 'N':
+					int count = checkedCount(payload, payload.getInt(), 2);
+					m.names = new String[count];
+					for (int i = 0; i < count; i++) {
+						int length = payload.getShort() & 0xFFFF;
+						m.names[i] = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+						payload.position(payload.position() + length);
+					}
+					break;
+				case 'S':
+					m.addresses = new InetSocketAddress[payload.getShort() & 0xFFFF];
+					for (int i = 0; i < m.addresses.length; i++)
+						m.addresses[i] = getAddress(payload);
+					break;
+				case 'L':
+					m.ids = new long[checkedCount(payload, payload.getInt(), ID_BYTES)];
+					for (int i = 0; i < m.ids.length; i++)
+						m.ids[i] = getId(payload);
+					break;
+				case 'O':
+					m.offset = payload.getLong();
+					break;
+				case 'B':
+					m.data = new byte[checkedCount(payload, payload.getInt(), 1)];
+					payload.get(m.data);
+					break;
+				case 'C':
+					m.count = payload.getLong();
+					break;
+				case 'T':
+					m.total = payload.getLong();
+					break;
+				case 'K':
+					m.checksum = payload.getInt() & 0xFFFFFFFFL;
+					break;
+			}
+		}
+		return m;
+	}
+
+	/* A count of elements read from a frame, each taking at least unit bytes: rejected unless the rest of the frame can hold them */
+	private static int checkedCount(ByteBuffer payload, int count, int unit) {
+		if (count < 0 || (long) count * unit > payload.remaining())
+			throw new IllegalArgumentException("Invalid count "+count);
+		return count;
+	}
+
+	/* The code of a frame, read without decoding its fields or moving the buffer */
+	public static String code(ByteBuffer payload) {
+		if (!payload.hasRemaining())
+			return null;
+		int start = payload.position();
+		if (payload.get(start) == BINARY) {
+			int opcode = payload.remaining() > 1 ? payload.get(start + 1) & 0xFF : CODES.length;
+			return opcode < CODES.length ? CODES[opcode][0] : null;
+		}
+		int end = start;
+		while (end < payload.limit() && payload.get(end) != '_')
+			end++;
+		return new String(payload.array(), payload.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+	}
+
+	/* Whether a request frame used the binary format, so the response can match it */
+	public static boolean isBinary(ByteBuffer payload) {
+		return payload.hasRemaining() && payload.get(payload.position()) == BINARY;
+	}
+
+	/* ******************************** Binary format ************************************** */
+
+	private static int binarySize(Message m, int opcode) {
+		int size = 2;
+		for (char field : FIELDS[opcode]) {
+			switch (field) {
+				case 'I':
+					size += ID_BYTES;
+					break;
+				case 'A':
+					size += addressSize(m.address);
+					break;
+				case 'N':
+					size += 4;
+					if (m.names != null)
+						for (String name : m.names)
+							size += 2 + utf8Length(name);
+					break;
+				case 'S':
+					size += 2;
+					if (m.addresses != null)
+						for (InetSocketAddress address : m.addresses)
+							size += addressSize(address);
+					break;
+				case 'L':
+					size += 4 + (m.ids == null ? 0 : ID_BYTES * m.ids.length);
+					break;
+				case 'O':
+					size += 8;
+					break;
+				case 'B':
+					size += 4 + (m.data == null ? 0 : m.data.length);
+					break;
+				case 'C':
+				case 'T':
+					size += 8;
+					break;
+				case 'K':
+					size += 4;
+					break;
+			}
+		}
+		return size;
+	}
+
+	private static void encodeBinary(Message m, int opcode, ByteBuffer out) {
+		out.put(BINARY);
+		out.put((byte) opcode);
+		for (char field : FIELDS[opcode]) {
+			switch (field) {
+				case 'I':
+					putId(out, m.id);
+					break;
+				case 'A':
+					putAddress(out, m.address);
+					break;
+				case 'N':
+					out.putInt(m.names == null ? 0 : m.names.length);
+					if (m.names != null)
+						for (String name : m.names) {
+							out.putShort((short) utf8Length(name));
+							putUtf8(out, name);
+						}
+					break;
+				case 'S':
+					out.putShort((short) (m.addresses == null ? 0 : m.addresses.length));
+					if (m.addresses != null)
+						for (InetSocketAddress address : m.addresses)
+							putAddress(out, address);
+					break;
+				case 'L':
+					out.putInt(m.ids == null ? 0 : m.ids.length);
+					if (m.ids != null)
+						for (long id : m.ids)
+							putId(out, id);
+					break;
+				case 'O':
+					out.putLong(m.offset);
+					break;
+				case 'B':
+					out.putInt(m.data == null ? 0 : m.data.length);
+					if (m.data != null)
+						out.put(m.data);
+					break;
+				case 'C':
+					out.putLong(m.count);
+					break;
+				case 'T':
+					out.putLong(m.total);
+					break;
+				case 'K':
+					out.putInt((int) m.checksum);
+					break;
+			}
+		}
+	}
+
+	private static void putId(ByteBuffer out, long id) {
+		if (ID_BYTES == 8)
+			out.putLong(id);
+		else
+			out.putInt((int) id);
+	}
+
+	private static long getId(ByteBuffer in) {
+		if (ID_BYTES == 8)
+			return in.getLong();
+		return in.getInt() & 0xFFFFFFFFL;
+	}
+
+	/* Bytes of an address in the binary format; also used by Snapshot */
+	static int addressSize(InetSocketAddress address) {
+		return address == null ? 1 : 3 + address.getAddress().getAddress().length;
+	}
+
+	static void putAddress(ByteBuffer out, InetSocketAddress address) {
+		if (address == null) {
+			out.put((byte) 0);
+			return;
+		}
+		byte[] ip = address.getAddress().getAddress();
+		out.put((byte) ip.length);
+		out.put(ip);
+		out.putShort((short) address.getPort());
+	}
+
+	static InetSocketAddress getAddress(ByteBuffer in) {
+		int length = in.get() & 0xFF;
+		if (length == 0)
+			return null;
+		byte[] ip = new byte[length];
+		in.get(ip);
+		int port = in.getShort() & 0xFFFF;
+		try {
+			// raw bytes never trigger a name lookup
+			return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Invalid address length "+length);
+		}
+	}
+
+	/* Number of bytes the UTF-8 form of s takes, without encoding it */
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length += 1;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c))
+				length += 1;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	/* Write the UTF-8 form of s straight into the buffer */
+	private static void putUtf8(ByteBuffer out, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				out.put((byte) c);
+			else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			}
+			else if (Character.isSurrogate(c)) {
+				// lone surrogates are written as '?' like String.getBytes does
+				out.put((byte) '?');
+			}
+			else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+}
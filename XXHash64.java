@@ -0,0 +1,99 @@
+/**
+ * The 64 bit xxHash of a byte array (XXH64), a fast non-cryptographic hash
+ * used for identifiers when chord.hash=xxhash.
+ * @author Anusha Naik
+ * @author Srivatsa Udupa
+ * @author Prarthana Raghavan
+ *
+ */
+
+public final class XXHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private XXHash64() {
+	}
+
+	/**
+	 * Hash the bytes
+	 * Args:
+	 *       data: the bytes to hash
+	 *       seed: the seed
+	 *
+	 * Returns:
+	 *       the 64 bit hash value
+	 */
+	public static long hash(byte[] data, long seed) {
+		int length = data.length;
+		int i = 0;
+		long h;
+		if (length >= 32) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			do {
+				v1 = round(v1, getLong(data, i));
+				v2 = round(v2, getLong(data, i + 8));
+				v3 = round(v3, getLong(data, i + 16));
+				v4 = round(v4, getLong(data, i + 24));
+				i += 32;
+			} while (i <= length - 32);
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		}
+		else {
+			h = seed + PRIME5;
+		}
+		h += length;
+
+		for (; i + 8 <= length; i += 8) {
+			h ^= round(0, getLong(data, i));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+		}
+		if (i + 4 <= length) {
+			h ^= (getInt(data, i) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < length; i++) {
+			h ^= (data[i] & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long value) {
+		acc ^= round(0, value);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	/* Little-endian reads */
+	private static long getLong(byte[] b, int i) {
+		return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+				| (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+	}
+
+	private static int getInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+}